@@ -0,0 +1,21 @@
+package no.andreas.fugler;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// JMH with the GC profiler always on, so every run reports allocation rate next to throughput.
+// Takes the usual JMH arguments, e.g. java -jar target/benchmarks.jar ParseBenchmark -p birds=260
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams() || options.shouldListProfilers()
+            || options.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+    }
+}
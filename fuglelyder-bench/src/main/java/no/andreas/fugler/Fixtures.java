@@ -0,0 +1,75 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// Catalogs and pages of a given size, grown from the saved fuglelyder.net pages
+final class Fixtures {
+    static final String URL = "https://www.fuglelyder.net/";
+    static final Bird KJOTTMEIS = new Bird(1000, "kjottmeis", "Kjøttmeis");
+    private static final String BIRD_OUTER = "<div class=\"bird-outer\">";
+
+    private Fixtures() {
+    }
+
+    static PageExtractor.Page page(final String name) {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/pages/" + name)) {
+            return new PageExtractor.Page(URL, Objects.requireNonNull(in, name).readAllBytes(), null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The saved bird list repeated until there are count birds, with fresh ids and slugs on every pass
+    static List<Bird> birds(final int count) throws IOException {
+        final List<Bird> saved = PageExtractor.birds(page("alfabetisk.html"));
+        final List<Bird> birds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Bird bird = saved.get(i % saved.size());
+            final int pass = i / saved.size();
+            birds.add(pass == 0 ? bird
+                : new Bird(bird.getId() + pass * 100_000, bird.getSlug() + "-" + pass, bird.getName() + " " + pass));
+        }
+        return birds;
+    }
+
+    static Map<Bird, List<BirdSound>> sounds(final List<Bird> birds) throws IOException {
+        final List<BirdSound> sounds = PageExtractor.sounds(page("kjottmeis.html"));
+        final Map<Bird, List<BirdSound>> index = new LinkedHashMap<>();
+        birds.forEach(bird -> index.put(bird, sounds));
+        return index;
+    }
+
+    static Map<Bird, List<BirdImage>> images(final List<Bird> birds) throws IOException {
+        final List<BirdImage> images = PageExtractor.images(KJOTTMEIS, page("fuglgallery-1000.html"));
+        final Map<Bird, List<BirdImage>> index = new LinkedHashMap<>();
+        birds.forEach(bird -> index.put(bird, images));
+        return index;
+    }
+
+    // The saved alfabetisk page with its bird list swapped for count birds in the same markup
+    static PageExtractor.Page birdPage(final int count) throws IOException {
+        final String saved = new String(page("alfabetisk.html").body(), StandardCharsets.UTF_8);
+        final int first = saved.indexOf(BIRD_OUTER);
+        final int end = saved.indexOf("\n</div>", saved.lastIndexOf(BIRD_OUTER)) + "\n</div>".length();
+        final StringBuilder html = new StringBuilder(saved.length() * (count / 200 + 1)).append(saved, 0, first);
+        for (Bird bird : birds(count)) {
+            html.append(BIRD_OUTER).append('\n')
+                .append("  <a href=\"/").append(bird.getSlug()).append("/\"><div class=\"bird-inner\">\n")
+                .append("    <img src=\"birdmedia/").append(bird.getId()).append('/').append(bird.getId())
+                .append("_thumb.jpg\" alt=\"").append(bird.getName()).append("\" loading=\"lazy\">\n")
+                .append("    <span class=\"bird-name\">").append(bird.getName()).append("</span>\n")
+                .append("  </div></a>\n")
+                .append("</div>\n");
+        }
+        html.append(saved, end + 1, saved.length());
+        return new PageExtractor.Page(URL, html.toString().getBytes(StandardCharsets.UTF_8), "UTF-8");
+    }
+}
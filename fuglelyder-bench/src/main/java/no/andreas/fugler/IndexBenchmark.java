@@ -0,0 +1,134 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Writing and reading a whole index of the given size: the legacy one-file-per-bird .ser
+// indexes next to the catalog file that replaced them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IndexBenchmark {
+    @Param({"100", "260", "1000"})
+    public int birds;
+
+    private Path root;
+    private List<Bird> birdIndex;
+    private Map<Bird, List<BirdSound>> soundIndex;
+    private Map<Bird, List<BirdImage>> imageIndex;
+    private Path birdIndexSave;
+    private Path soundSaves;
+    private Path imageSaves;
+    private Path catalogSave;
+    private Path scratch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("fugl-bench");
+        birdIndex = Fixtures.birds(birds);
+        soundIndex = Fixtures.sounds(birdIndex);
+        imageIndex = Fixtures.images(birdIndex);
+        birdIndexSave = root.resolve("birdIndex.ser");
+        soundSaves = Files.createDirectory(root.resolve("soundIndex"));
+        imageSaves = Files.createDirectory(root.resolve("imageIndex"));
+        catalogSave = root.resolve("catalog.bin");
+        scratch = Files.createDirectory(root.resolve("scratch"));
+        FuglelyderSkraper.writeBirdIndex(birdIndexSave, birdIndex);
+        writeSounds(soundSaves);
+        writeImages(imageSaves);
+        CatalogFile.write(catalogSave, new CatalogFile.Contents(birdIndex, soundIndex, imageIndex));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FuglelyderSkraper.deleteTree(root);
+    }
+
+    @Benchmark
+    public void writeBirdIndex() throws IOException {
+        FuglelyderSkraper.writeBirdIndex(scratch.resolve("birdIndex.ser"), birdIndex);
+    }
+
+    @Benchmark
+    public List<Bird> readBirdIndex() throws IOException, ClassNotFoundException {
+        return FuglelyderSkraper.readBirdIndex(birdIndexSave);
+    }
+
+    @Benchmark
+    public void writeIndexSounds() throws IOException {
+        writeSounds(scratch);
+    }
+
+    @Benchmark
+    public void readSoundIndexEntries(final Blackhole blackhole) throws IOException, ClassNotFoundException {
+        for (Bird bird : birdIndex) {
+            blackhole.consume(FuglelyderSkraper.readSoundIndexEntry(soundSaves.resolve(bird.getId().toString())));
+        }
+    }
+
+    @Benchmark
+    public void writeIndexImages() throws IOException {
+        writeImages(scratch);
+    }
+
+    @Benchmark
+    public void readImageIndexEntries(final Blackhole blackhole) throws IOException, ClassNotFoundException {
+        for (Bird bird : birdIndex) {
+            blackhole.consume(FuglelyderSkraper.readImageIndexEntry(imageSaves.resolve(bird.getId().toString())));
+        }
+    }
+
+    @Benchmark
+    public void writeCatalog() throws IOException {
+        CatalogFile.write(scratch.resolve("catalog.bin"), new CatalogFile.Contents(birdIndex, soundIndex, imageIndex));
+    }
+
+    // What getSoundIndex costs for a caller that touches every entry: open the catalog and decode all sounds
+    @Benchmark
+    public void loadSoundIndex(final Blackhole blackhole) throws IOException {
+        for (List<BirdSound> sounds : FuglelyderSkraper.readSoundIndex(birdIndex, catalogSave).values()) {
+            blackhole.consume(sounds);
+        }
+    }
+
+    @Benchmark
+    public void loadImageIndex(final Blackhole blackhole) throws IOException {
+        for (List<BirdImage> images : FuglelyderSkraper.readImageIndex(birdIndex, catalogSave).values()) {
+            blackhole.consume(images);
+        }
+    }
+
+    private void writeSounds(final Path saves) throws IOException {
+        for (Bird bird : birdIndex) {
+            FuglelyderSkraper.writeIndexSounds(saves.resolve(bird.getId().toString()), soundIndex.get(bird));
+        }
+    }
+
+    private void writeImages(final Path saves) throws IOException {
+        for (Bird bird : birdIndex) {
+            FuglelyderSkraper.writeIndexImages(saves.resolve(bird.getId().toString()), imageIndex.get(bird));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The extraction done by downloadBirdIndex, downloadSoundIndexEntry and downloadImageIndexEntry,
+// without the network: the fetched page is already in memory.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParseBenchmark {
+    @State(Scope.Benchmark)
+    public static class BirdPage {
+        @Param({"100", "260", "1000"})
+        public int birds;
+
+        PageExtractor.Page page;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            page = Fixtures.birdPage(birds);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BirdPages {
+        PageExtractor.Page sounds;
+        PageExtractor.Page gallery;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            sounds = Fixtures.page("kjottmeis.html");
+            gallery = Fixtures.page("fuglgallery-1000.html");
+        }
+    }
+
+    @Benchmark
+    public List<Bird> birdIndex(final BirdPage page) throws IOException {
+        return PageExtractor.birds(page.page);
+    }
+
+    @Benchmark
+    public List<BirdSound> soundIndexEntry(final BirdPages pages) throws IOException {
+        return PageExtractor.sounds(pages.sounds);
+    }
+
+    @Benchmark
+    public List<BirdImage> imageIndexEntry(final BirdPages pages) throws IOException {
+        return PageExtractor.images(Fixtures.KJOTTMEIS, pages.gallery);
+    }
+}
@@ -0,0 +1,61 @@
+#!/usr/bin/env bash
+# Cold start of the plain jar, the jar with an AppCDS archive and the native image, on the
+# commands that only read the local cache. Build them first:
+#
+#   mvn -Pcds package          target/fuglelyder-1.0-SNAPSHOT.jar, target/lib and target/fugl.jsa
+#   mvn -Pnative package       target/fugl (needs a GraalVM JDK)
+#
+# Run from a directory with a populated birds/ cache. Uses hyperfine when it is installed,
+# otherwise times RUNS runs of each command itself.
+set -euo pipefail
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+RUNS=${RUNS:-20}
+JAR=$ROOT/target/fuglelyder-1.0-SNAPSHOT.jar
+JSA=$ROOT/target/fugl.jsa
+NATIVE=$ROOT/target/fugl
+COMMANDS=("list birds" "list all-sounds" "list all-images")
+
+if [[ ! -f birds/catalog.bin ]]; then
+  echo "no birds/catalog.bin here, the commands would crawl instead of reading the cache" >&2
+  exit 1
+fi
+if [[ ! -f $JAR ]]; then
+  echo "missing $JAR, run mvn -Pcds package first" >&2
+  exit 1
+fi
+
+variants=("jar|java -jar $JAR")
+if [[ -f $JSA ]]; then
+  variants+=("cds|java -XX:SharedArchiveFile=$JSA -Xshare:auto -jar $JAR")
+else
+  echo "no $JSA, skipping the CDS variant" >&2
+fi
+if [[ -x $NATIVE ]]; then
+  variants+=("native|$NATIVE")
+else
+  echo "no $NATIVE, skipping the native variant" >&2
+fi
+
+for command in "${COMMANDS[@]}"; do
+  echo "== fugl $command"
+  if command -v hyperfine > /dev/null; then
+    args=()
+    for variant in "${variants[@]}"; do
+      args+=(--command-name "${variant%%|*}" "${variant#*|} $command")
+    done
+    hyperfine --warmup 3 --runs "$RUNS" --output null "${args[@]}"
+    continue
+  fi
+  for variant in "${variants[@]}"; do
+    name=${variant%%|*}
+    run="${variant#*|} $command"
+    $run > /dev/null
+    start=$(date +%s%N)
+    for ((i = 0; i < RUNS; i++)); do
+      $run > /dev/null
+    done
+    end=$(date +%s%N)
+    printf '%-8s %8.1f ms mean over %d runs\n' "$name" "$(( (end - start) / RUNS ))e-6" "$RUNS"
+  done
+done
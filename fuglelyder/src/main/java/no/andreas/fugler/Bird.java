@@ -1,8 +1,11 @@
 package no.andreas.fugler;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 public class Bird implements Serializable{
+    // Pinned to the value of the original class so old index files still deserialize
+    private static final long serialVersionUID = -3031229595169658710L;
     private Integer id;
     private String slug;
     private String name;
@@ -33,6 +36,23 @@ public class Bird implements Serializable{
         this.name = name;
     }
 
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof Bird)) {
+            return false;
+        }
+        final Bird other = (Bird) object;
+        return Objects.equals(id, other.id) && Objects.equals(slug, other.slug) && Objects.equals(name, other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, slug, name);
+    }
+
     @Override
     public String toString() {
         return (this.id == null ? "missing" : this.id) + " " + this.slug;
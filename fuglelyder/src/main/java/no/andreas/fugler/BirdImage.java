@@ -1,8 +1,11 @@
 package no.andreas.fugler;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 public class BirdImage implements Serializable{
+    // Pinned to the value of the original class so old index files still deserialize
+    private static final long serialVersionUID = 5436158543833698841L;
     private String slug;
     private String name;
 
@@ -25,6 +28,23 @@ public class BirdImage implements Serializable{
         this.name = name;
     }
 
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof BirdImage)) {
+            return false;
+        }
+        final BirdImage other = (BirdImage) object;
+        return Objects.equals(slug, other.slug) && Objects.equals(name, other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(slug, name);
+    }
+
     @Override
     public String toString() {
         return this.slug;
@@ -0,0 +1,83 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Read only map of birds to their sound or image entries. Entries are only decoded when a bird is
+// looked up or reached by iteration, so nothing is materialized for birds a command never touches.
+final class BirdIndexView<T> extends AbstractMap<Bird, List<T>> {
+  interface Loader<T> {
+    List<T> load(Bird bird) throws IOException;
+  }
+
+  private final Set<Bird> birds;
+  private final Loader<T> loader;
+
+  BirdIndexView(final List<Bird> birds, final Loader<T> loader) {
+    this.birds = Collections.unmodifiableSet(new LinkedHashSet<>(birds));
+    this.loader = loader;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return birds.contains(key);
+  }
+
+  @Override
+  public List<T> get(final Object key) {
+    return birds.contains(key) ? load((Bird) key) : null;
+  }
+
+  @Override
+  public Set<Bird> keySet() {
+    return birds;
+  }
+
+  @Override
+  public int size() {
+    return birds.size();
+  }
+
+  @Override
+  public Set<Map.Entry<Bird, List<T>>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Map.Entry<Bird, List<T>>> iterator() {
+        final Iterator<Bird> keys = birds.iterator();
+        return new Iterator<>() {
+          @Override
+          public boolean hasNext() {
+            return keys.hasNext();
+          }
+
+          @Override
+          public Map.Entry<Bird, List<T>> next() {
+            final Bird bird = keys.next();
+            return new AbstractMap.SimpleImmutableEntry<>(bird, load(bird));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return birds.size();
+      }
+    };
+  }
+
+  private List<T> load(final Bird bird) {
+    try {
+      return loader.load(bird);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
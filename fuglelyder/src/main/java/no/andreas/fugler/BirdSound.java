@@ -1,10 +1,19 @@
 package no.andreas.fugler;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 class BirdSound implements Serializable {
+    // Pinned to the value of the original class so old index files still deserialize
+    private static final long serialVersionUID = 1289609314143363169L;
     private Integer id;
     private String slug;
+    // Filled in by `fugl analyze sounds` from the downloaded MP3, null until then
+    private Integer durationMillis;
+    private Integer bitrate;
+    private Integer sampleRate;
+    private Long size;
+    private Long modified;
 
     public BirdSound(Integer id, String slug) {
         this.id = id;
@@ -18,6 +27,30 @@ class BirdSound implements Serializable {
         return slug;
     }
 
+    // Length of the clip in milliseconds
+    public Integer getDurationMillis() {
+        return durationMillis;
+    }
+    // Average bitrate in kbit/s
+    public Integer getBitrate() {
+        return bitrate;
+    }
+    // Sample rate in Hz
+    public Integer getSampleRate() {
+        return sampleRate;
+    }
+    // Size in bytes and modification time in epoch milliseconds of the file that was analyzed
+    public Long getSize() {
+        return size;
+    }
+    public Long getModified() {
+        return modified;
+    }
+
+    public boolean isAnalyzed() {
+        return size != null;
+    }
+
     public void setId(final Integer id) {
         this.id = id;
     }
@@ -25,6 +58,37 @@ class BirdSound implements Serializable {
         this.slug = type;
     }
 
+    public void setAnalysis(final Integer durationMillis, final Integer bitrate, final Integer sampleRate,
+    final Long size, final Long modified) {
+        this.durationMillis = durationMillis;
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    public void copyAnalysis(final BirdSound other) {
+        setAnalysis(other.durationMillis, other.bitrate, other.sampleRate, other.size, other.modified);
+    }
+
+    // Only the id and slug identify a sound, the analysis describes the file it was downloaded to
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof BirdSound)) {
+            return false;
+        }
+        final BirdSound other = (BirdSound) object;
+        return Objects.equals(id, other.id) && Objects.equals(slug, other.slug);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, slug);
+    }
+
     @Override
     public String toString() {
         return this.id + " " + this.slug;
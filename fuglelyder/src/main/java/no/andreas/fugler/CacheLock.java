@@ -0,0 +1,114 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Coordinates the fugl processes that work on one birds/ directory through a lock file next to what it
+// guards, catalog.bin.lock for catalog.bin. A lock file is used in one of two ways: locked whole, shared
+// by readers and exclusive for a writer, or one byte of it at a time to claim single items.
+//
+// File locks belong to the process and are dropped when any channel of the process on the file is closed,
+// so every lock file has one channel, opened on first use and kept for the life of the process. Threads
+// of this process are kept apart by a read-write lock in front of the file lock.
+final class CacheLock {
+  interface Held extends AutoCloseable {
+    @Override
+    void close() throws IOException;
+  }
+
+  private static final Map<Path, CacheLock> locks = new ConcurrentHashMap<>();
+
+  private final Path file;
+  private final ReentrantReadWriteLock local = new ReentrantReadWriteLock();
+  // Guarded by this
+  private FileChannel channel;
+  private FileLock held;
+  private int holders;
+
+  private CacheLock(final Path file) {
+    this.file = file;
+  }
+
+  // The lock that guards the given file or directory
+  static CacheLock of(final Path guarded) {
+    final Path absolute = guarded.toAbsolutePath().normalize();
+    return locks.computeIfAbsent(absolute.resolveSibling(absolute.getFileName() + ".lock"), CacheLock::new);
+  }
+
+  // Shared with other readers, here and in other processes. A thread holding exclusive() may also take it.
+  Held shared() throws IOException {
+    return acquire(local.readLock(), true);
+  }
+
+  // Exclusive to this thread across every process, and reentrant. Never taken while holding shared().
+  Held exclusive() throws IOException {
+    return acquire(local.writeLock(), false);
+  }
+
+  // The item for this process until the claim is closed, or null when another process or thread has claimed it
+  Held claim(final String item) throws IOException {
+    // One byte per item, at an offset the item name hashes to
+    final long position = UUID.nameUUIDFromBytes(item.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits() >>> 2;
+    final FileLock claim;
+    try {
+      claim = channel().tryLock(position, 1, false);
+    } catch (OverlappingFileLockException e) {
+      return null;
+    }
+    return claim == null ? null : claim::release;
+  }
+
+  private Held acquire(final Lock inProcess, final boolean shared) throws IOException {
+    inProcess.lock();
+    try {
+      lockFile(shared);
+    } catch (IOException | RuntimeException e) {
+      inProcess.unlock();
+      throw e;
+    }
+    return () -> {
+      try {
+        unlockFile();
+      } finally {
+        inProcess.unlock();
+      }
+    };
+  }
+
+  // Only the first holder takes the file lock, the in-process lock already decided who may share it.
+  // A reader of a directory that does not exist yet has nothing to read and leaves no lock file behind.
+  private synchronized void lockFile(final boolean shared) throws IOException {
+    if (holders == 0 && !(shared && !Files.isDirectory(file.getParent()))) {
+      held = channel().lock(0, Long.MAX_VALUE, shared);
+    }
+    holders++;
+  }
+
+  private synchronized void unlockFile() throws IOException {
+    if (--holders == 0 && held != null) {
+      final FileLock release = held;
+      held = null;
+      release.release();
+    }
+  }
+
+  private synchronized FileChannel channel() throws IOException {
+    // A thread interrupted while waiting on the lock closes the channel with it
+    if (channel == null || !channel.isOpen()) {
+      Files.createDirectories(file.getParent());
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    return channel;
+  }
+}
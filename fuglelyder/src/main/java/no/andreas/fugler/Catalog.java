@@ -0,0 +1,160 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The catalog as loaded by this process, with the birds indexed by id, slug and name.
+// Loaded once and reused until the catalog file is rewritten by this process.
+final class Catalog {
+  // Number of birds whose decoded sound or image entries are kept around
+  static final int ENTRY_CACHE_SIZE = 128;
+
+  private static Catalog loaded;
+
+  private final CatalogFile file;
+  private final List<Bird> birds;
+  private final Map<Integer, Bird> byId;
+  private final Map<String, Bird> bySlug;
+  private final Map<String, Bird> byName;
+  private final Map<Bird, Integer> rows;
+  private final boolean soundsIndexed;
+  private final boolean imagesIndexed;
+  private final LruCache<Integer, List<BirdSound>> soundCache = new LruCache<>(ENTRY_CACHE_SIZE);
+  private final LruCache<Integer, List<BirdImage>> imageCache = new LruCache<>(ENTRY_CACHE_SIZE);
+
+  private Catalog(final CatalogFile file) throws IOException {
+    this.file = file;
+    this.birds = Collections.unmodifiableList(file.birds());
+    this.byId = new HashMap<>(birds.size() * 2);
+    this.bySlug = new HashMap<>(birds.size() * 2);
+    this.byName = new HashMap<>(birds.size() * 2);
+    this.rows = new HashMap<>(birds.size() * 2);
+    boolean sounds = false;
+    boolean images = false;
+    for (int row = 0; row < birds.size(); row++) {
+      final Bird bird = birds.get(row);
+      rows.putIfAbsent(bird, row);
+      if (bird.getId() != null) {
+        byId.putIfAbsent(bird.getId(), bird);
+      }
+      if (bird.getSlug() != null) {
+        bySlug.putIfAbsent(bird.getSlug(), bird);
+      }
+      if (bird.getName() != null) {
+        byName.putIfAbsent(SearchIndex.normalize(bird.getName()), bird);
+      }
+      sounds |= file.hasSounds(row);
+      images |= file.hasImages(row);
+    }
+    this.soundsIndexed = sounds;
+    this.imagesIndexed = images;
+  }
+
+  // The catalog for this process, downloading the bird index if nothing has been indexed yet
+  static synchronized Catalog get() throws IOException, ClassNotFoundException {
+    if (loaded == null) {
+      CatalogFile file = FuglelyderSkraper.openCatalog();
+      if (file == null) {
+        FuglelyderSkraper.downloadBirdIndex();
+        file = FuglelyderSkraper.openCatalog();
+      }
+      loaded = new Catalog(file);
+    }
+    return loaded;
+  }
+
+  // Drop the loaded catalog so the next get() sees the rewritten file
+  static synchronized void invalidate() {
+    loaded = null;
+  }
+
+  List<Bird> birds() {
+    return birds;
+  }
+
+  boolean hasSounds() {
+    return soundsIndexed;
+  }
+
+  boolean hasImages() {
+    return imagesIndexed;
+  }
+
+  Bird byId(final Integer id) {
+    return byId.get(id);
+  }
+
+  Bird bySlug(final String slug) {
+    return bySlug.get(slug);
+  }
+
+  // Case and accents do not matter, "kjottmeis" finds "Kjøttmeis"
+  Bird byName(final String name) {
+    return byName.get(SearchIndex.normalize(name));
+  }
+
+  // Look a bird up the way it is written on the command line: by slug, id or name
+  Bird find(final String key) {
+    Bird bird = bySlug(key);
+    if (bird == null && !key.isEmpty() && key.length() < 10 && key.chars().allMatch(Character::isDigit)) {
+      bird = byId(Integer.valueOf(key));
+    }
+    if (bird == null) {
+      bird = byName(key);
+    }
+    return bird;
+  }
+
+  // Sound entries of a catalog bird, or null when its page has not been indexed
+  List<BirdSound> sounds(final Bird bird) throws IOException {
+    final Integer row = rows.get(bird);
+    if (row == null || !file.hasSounds(row)) {
+      return null;
+    }
+    List<BirdSound> sounds = soundCache.get(row);
+    if (sounds == null) {
+      sounds = Collections.unmodifiableList(file.sounds(row));
+      soundCache.put(row, sounds);
+    }
+    return sounds;
+  }
+
+  // Image entries of a catalog bird, or null when its gallery has not been indexed
+  List<BirdImage> images(final Bird bird) throws IOException {
+    final Integer row = rows.get(bird);
+    if (row == null || !file.hasImages(row)) {
+      return null;
+    }
+    List<BirdImage> images = imageCache.get(row);
+    if (images == null) {
+      images = Collections.unmodifiableList(file.images(row));
+      imageCache.put(row, images);
+    }
+    return images;
+  }
+
+  // Lazy view of the sound entries of the given birds, leaving out birds that have not been indexed
+  Map<Bird, List<BirdSound>> soundIndex(final List<Bird> birdIndex) {
+    return new BirdIndexView<>(indexed(birdIndex, true), this::sounds);
+  }
+
+  // Lazy view of the image entries of the given birds, leaving out birds that have not been indexed
+  Map<Bird, List<BirdImage>> imageIndex(final List<Bird> birdIndex) {
+    return new BirdIndexView<>(indexed(birdIndex, false), this::images);
+  }
+
+  private List<Bird> indexed(final List<Bird> birdIndex, final boolean sounds) {
+    final List<Bird> indexed = new ArrayList<>(birdIndex.size());
+    for (Bird bird : birdIndex) {
+      final Integer row = rows.get(bird);
+      if (row != null && (sounds ? file.hasSounds(row) : file.hasImages(row))) {
+        indexed.add(bird);
+      }
+    }
+    return indexed;
+  }
+}
@@ -0,0 +1,416 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// Single file holding the bird index together with every bird's sound and image entries.
+//
+// Layout (big endian):
+//   header       magic "FUGL", u16 version, u16 flags, string count, bird count,
+//                string table offset, bird table offset, record section offset
+//   string table one absolute offset per string, followed by u16 length prefixed UTF-8 strings
+//   bird table   fixed rows of id, slug ref, name ref, sound record offset, image record offset
+//   records      count prefixed sound lists (id, slug ref, duration ms, kbit/s, sample rate, u64 size,
+//                u64 mtime) and image lists (slug ref, name ref)
+//
+// Missing ids and strings are stored as NULL_ID and NO_STRING, a bird without a crawled
+// sound or image page has NOT_INDEXED as its record offset and a sound that has not been
+// analyzed has NOT_ANALYZED in its analysis fields. Version 1 files, whose sound records are
+// only id and slug ref, are still read and are rewritten as version 2.
+final class CatalogFile {
+  static final int MAGIC = 0x4655474C;
+  static final short VERSION = 2;
+
+  private static final int HEADER_SIZE = 28;
+  private static final int BIRD_ROW_SIZE = 20;
+  private static final int NULL_ID = Integer.MIN_VALUE;
+  private static final int NO_STRING = -1;
+  private static final int NOT_INDEXED = -1;
+  private static final int NOT_ANALYZED = -1;
+  private static final int SOUND_RECORD_SIZE = 36;
+  private static final int V1_SOUND_RECORD_SIZE = 8;
+  private static final int IMAGE_RECORD_SIZE = 8;
+
+  record Contents(List<Bird> birds, Map<Bird, List<BirdSound>> sounds, Map<Bird, List<BirdImage>> images) {
+    static Contents empty() {
+      return new Contents(List.of(), Map.of(), Map.of());
+    }
+
+    // Swap in a freshly scraped bird list, keeping the entries of birds that are still present
+    Contents withBirds(final List<Bird> newBirds) {
+      final Map<Integer, Bird> previous = new HashMap<>();
+      for (Bird bird : birds) {
+        if (bird.getId() != null) {
+          previous.put(bird.getId(), bird);
+        }
+      }
+      final Map<Bird, List<BirdSound>> keptSounds = new HashMap<>();
+      final Map<Bird, List<BirdImage>> keptImages = new HashMap<>();
+      for (Bird bird : newBirds) {
+        final Bird old = bird.getId() == null ? null : previous.get(bird.getId());
+        if (old != null && sounds.containsKey(old)) {
+          keptSounds.put(bird, sounds.get(old));
+        }
+        if (old != null && images.containsKey(old)) {
+          keptImages.put(bird, images.get(old));
+        }
+      }
+      return new Contents(List.copyOf(newBirds), keptSounds, keptImages);
+    }
+
+    // Re-crawled sounds keep the analysis of the entry they replace until the file is analyzed again
+    Contents withSounds(final Map<Bird, List<BirdSound>> newSounds) {
+      for (Map.Entry<Bird, List<BirdSound>> entry : newSounds.entrySet()) {
+        final List<BirdSound> previous = sounds.get(entry.getKey());
+        if (previous == null || previous == entry.getValue()) {
+          continue;
+        }
+        for (BirdSound sound : entry.getValue()) {
+          final int at = sound.isAnalyzed() ? -1 : previous.indexOf(sound);
+          if (at >= 0) {
+            sound.copyAnalysis(previous.get(at));
+          }
+        }
+      }
+      return new Contents(birds, newSounds, images);
+    }
+
+    Contents withImages(final Map<Bird, List<BirdImage>> newImages) {
+      return new Contents(birds, sounds, newImages);
+    }
+  }
+
+  private final Path save;
+  private final ByteBuffer buffer;
+  private final int birdCount;
+  private final int stringCount;
+  private final int stringTable;
+  private final int birdTable;
+  private final int soundRecordSize;
+  private final String[] strings;
+  private volatile Map<Integer, Integer> rowsById;
+
+  private CatalogFile(final Path save, final ByteBuffer buffer) throws IOException {
+    this.save = save;
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException(save + " is not a catalog file");
+    }
+    final short version = buffer.getShort(4);
+    if (version != VERSION && version != 1) {
+      throw new IOException(save + " has unsupported catalog version " + version);
+    }
+    this.soundRecordSize = version == 1 ? V1_SOUND_RECORD_SIZE : SOUND_RECORD_SIZE;
+    this.stringCount = buffer.getInt(8);
+    this.birdCount = buffer.getInt(12);
+    this.stringTable = buffer.getInt(16);
+    this.birdTable = buffer.getInt(20);
+    final int records = buffer.getInt(24);
+    if (stringCount < 0 || birdCount < 0
+      || stringTable < HEADER_SIZE || (long) stringTable + 4L * stringCount > buffer.capacity()
+      || birdTable < stringTable || (long) birdTable + (long) BIRD_ROW_SIZE * birdCount > records
+      || records > buffer.capacity()) {
+      throw new IOException(save + " is a corrupt catalog file");
+    }
+    this.strings = new String[stringCount];
+  }
+
+  static CatalogFile open(final Path save) throws IOException {
+    try (FileChannel channel = FileChannel.open(save, StandardOpenOption.READ)) {
+      return new CatalogFile(save, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  Path getSave() {
+    return save;
+  }
+
+  int birdCount() {
+    return birdCount;
+  }
+
+  List<Bird> birds() throws IOException {
+    final List<Bird> birds = new ArrayList<>(birdCount);
+    for (int row = 0; row < birdCount; row++) {
+      birds.add(bird(row));
+    }
+    return birds;
+  }
+
+  Bird bird(final int row) throws IOException {
+    final int at = birdRow(row);
+    return new Bird(id(buffer.getInt(at)), string(buffer.getInt(at + 4)), string(buffer.getInt(at + 8)));
+  }
+
+  // Row of the bird with the given id, or -1 when the catalog does not have it
+  int rowOf(final Integer id) {
+    Map<Integer, Integer> rows = rowsById;
+    if (rows == null) {
+      rows = new HashMap<>(birdCount * 2);
+      for (int row = birdCount - 1; row >= 0; row--) {
+        final int birdId = buffer.getInt(birdRow(row));
+        if (birdId != NULL_ID) {
+          rows.put(birdId, row);
+        }
+      }
+      rowsById = rows;
+    }
+    return id == null ? -1 : rows.getOrDefault(id, -1);
+  }
+
+  boolean hasSounds(final int row) {
+    return buffer.getInt(birdRow(row) + 12) != NOT_INDEXED;
+  }
+
+  boolean hasImages(final int row) {
+    return buffer.getInt(birdRow(row) + 16) != NOT_INDEXED;
+  }
+
+  // Sound entries of a bird, or null when its sound page has not been indexed
+  List<BirdSound> sounds(final int row) throws IOException {
+    final int at = buffer.getInt(birdRow(row) + 12);
+    if (at == NOT_INDEXED) {
+      return null;
+    }
+    try {
+      final int count = recordCount(at, soundRecordSize);
+      final List<BirdSound> sounds = new ArrayList<>(count);
+      for (int i = 0, record = at + 4; i < count; i++, record += soundRecordSize) {
+        final BirdSound sound = new BirdSound(id(buffer.getInt(record)), string(buffer.getInt(record + 4)));
+        if (soundRecordSize == SOUND_RECORD_SIZE && buffer.getLong(record + 20) != NOT_ANALYZED) {
+          sound.setAnalysis(analyzed(buffer.getInt(record + 8)), analyzed(buffer.getInt(record + 12)),
+            analyzed(buffer.getInt(record + 16)), buffer.getLong(record + 20), buffer.getLong(record + 28));
+        }
+        sounds.add(sound);
+      }
+      return sounds;
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new IOException(save + " has a corrupt sound record for row " + row, e);
+    }
+  }
+
+  // Image entries of a bird, or null when its gallery page has not been indexed
+  List<BirdImage> images(final int row) throws IOException {
+    final int at = buffer.getInt(birdRow(row) + 16);
+    if (at == NOT_INDEXED) {
+      return null;
+    }
+    try {
+      final int count = recordCount(at, IMAGE_RECORD_SIZE);
+      final List<BirdImage> images = new ArrayList<>(count);
+      for (int i = 0, record = at + 4; i < count; i++, record += IMAGE_RECORD_SIZE) {
+        images.add(new BirdImage(string(buffer.getInt(record)), string(buffer.getInt(record + 4))));
+      }
+      return images;
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new IOException(save + " has a corrupt image record for row " + row, e);
+    }
+  }
+
+  Contents contents() throws IOException {
+    final List<Bird> birds = birds();
+    final Map<Bird, List<BirdSound>> sounds = new HashMap<>();
+    final Map<Bird, List<BirdImage>> images = new HashMap<>();
+    for (int row = 0; row < birdCount; row++) {
+      final List<BirdSound> birdSounds = sounds(row);
+      if (birdSounds != null) {
+        sounds.put(birds.get(row), birdSounds);
+      }
+      final List<BirdImage> birdImages = images(row);
+      if (birdImages != null) {
+        images.put(birds.get(row), birdImages);
+      }
+    }
+    return new Contents(birds, sounds, images);
+  }
+
+  private int birdRow(final int row) {
+    if (row < 0 || row >= birdCount) {
+      throw new IndexOutOfBoundsException("bird row " + row + " out of " + birdCount);
+    }
+    return birdTable + row * BIRD_ROW_SIZE;
+  }
+
+  private int recordCount(final int at, final int recordSize) {
+    final int count = buffer.getInt(at);
+    if (count < 0 || at + 4L + (long) recordSize * count > buffer.capacity()) {
+      throw new IndexOutOfBoundsException("record list at " + at + " runs past the end of the catalog");
+    }
+    return count;
+  }
+
+  private static Integer id(final int stored) {
+    return stored == NULL_ID ? null : stored;
+  }
+
+  private static Integer analyzed(final int stored) {
+    return stored == NOT_ANALYZED ? null : stored;
+  }
+
+  private String string(final int ref) throws IOException {
+    if (ref == NO_STRING) {
+      return null;
+    }
+    if (ref < 0 || ref >= stringCount) {
+      throw new IOException(save + " refers to missing string " + ref);
+    }
+    String string = strings[ref];
+    if (string == null) {
+      try {
+        final int at = buffer.getInt(stringTable + 4 * ref);
+        final byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort(at))];
+        buffer.get(at + 2, bytes);
+        string = new String(bytes, StandardCharsets.UTF_8);
+        strings[ref] = string;
+      } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+        throw new IOException(save + " has a corrupt string table", e);
+      }
+    }
+    return string;
+  }
+
+  // Write the catalog next to its destination and move it into place, so readers never see half a file
+  static void write(final Path save, final Contents contents) throws IOException {
+    final Path directory = save.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    final Path temp = Files.createTempFile(directory, save.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        final ByteBuffer encoded = encode(contents);
+        while (encoded.hasRemaining()) {
+          channel.write(encoded);
+        }
+        channel.force(true);
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  static ByteBuffer encode(final Contents contents) {
+    final List<Bird> birds = contents.birds();
+    final Map<String, Integer> refs = new LinkedHashMap<>();
+    final List<byte[]> encodedStrings = new ArrayList<>();
+
+    // Intern every string first so the sections can be sized up front
+    for (Bird bird : birds) {
+      intern(refs, encodedStrings, bird.getSlug());
+      intern(refs, encodedStrings, bird.getName());
+      final List<BirdSound> sounds = contents.sounds().get(bird);
+      if (sounds != null) {
+        for (BirdSound sound : sounds) {
+          intern(refs, encodedStrings, sound.getSlug());
+        }
+      }
+      final List<BirdImage> images = contents.images().get(bird);
+      if (images != null) {
+        for (BirdImage image : images) {
+          intern(refs, encodedStrings, image.getSlug());
+          intern(refs, encodedStrings, image.getName());
+        }
+      }
+    }
+
+    long size = HEADER_SIZE + 4L * encodedStrings.size();
+    for (byte[] bytes : encodedStrings) {
+      size += 2 + bytes.length;
+    }
+    final long birdTable = size;
+    size += (long) BIRD_ROW_SIZE * birds.size();
+    final long records = size;
+    for (Bird bird : birds) {
+      final List<BirdSound> sounds = contents.sounds().get(bird);
+      final List<BirdImage> images = contents.images().get(bird);
+      size += sounds == null ? 0 : 4 + (long) SOUND_RECORD_SIZE * sounds.size();
+      size += images == null ? 0 : 4 + (long) IMAGE_RECORD_SIZE * images.size();
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("catalog would exceed 2 GiB");
+    }
+
+    final ByteBuffer out = ByteBuffer.allocate((int) size);
+    out.putInt(MAGIC)
+      .putShort(VERSION)
+      .putShort((short) 0)
+      .putInt(encodedStrings.size())
+      .putInt(birds.size())
+      .putInt(HEADER_SIZE)
+      .putInt((int) birdTable)
+      .putInt((int) records);
+
+    int at = HEADER_SIZE + 4 * encodedStrings.size();
+    for (byte[] bytes : encodedStrings) {
+      out.putInt(at);
+      at += 2 + bytes.length;
+    }
+    for (byte[] bytes : encodedStrings) {
+      out.putShort((short) bytes.length).put(bytes);
+    }
+
+    int record = (int) records;
+    for (Bird bird : birds) {
+      final List<BirdSound> sounds = contents.sounds().get(bird);
+      final List<BirdImage> images = contents.images().get(bird);
+      out.putInt(bird.getId() == null ? NULL_ID : bird.getId())
+        .putInt(ref(refs, bird.getSlug()))
+        .putInt(ref(refs, bird.getName()));
+      out.putInt(sounds == null ? NOT_INDEXED : record);
+      record += sounds == null ? 0 : 4 + SOUND_RECORD_SIZE * sounds.size();
+      out.putInt(images == null ? NOT_INDEXED : record);
+      record += images == null ? 0 : 4 + IMAGE_RECORD_SIZE * images.size();
+    }
+    for (Bird bird : birds) {
+      final List<BirdSound> sounds = contents.sounds().get(bird);
+      if (sounds != null) {
+        out.putInt(sounds.size());
+        for (BirdSound sound : sounds) {
+          out.putInt(sound.getId() == null ? NULL_ID : sound.getId())
+            .putInt(ref(refs, sound.getSlug()))
+            .putInt(Objects.requireNonNullElse(sound.getDurationMillis(), NOT_ANALYZED))
+            .putInt(Objects.requireNonNullElse(sound.getBitrate(), NOT_ANALYZED))
+            .putInt(Objects.requireNonNullElse(sound.getSampleRate(), NOT_ANALYZED))
+            .putLong(Objects.requireNonNullElse(sound.getSize(), (long) NOT_ANALYZED))
+            .putLong(Objects.requireNonNullElse(sound.getModified(), (long) NOT_ANALYZED));
+        }
+      }
+      final List<BirdImage> images = contents.images().get(bird);
+      if (images != null) {
+        out.putInt(images.size());
+        for (BirdImage image : images) {
+          out.putInt(ref(refs, image.getSlug())).putInt(ref(refs, image.getName()));
+        }
+      }
+    }
+    return out.flip();
+  }
+
+  private static void intern(final Map<String, Integer> refs, final List<byte[]> encoded, final String string) {
+    if (string == null || refs.containsKey(string)) {
+      return;
+    }
+    final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xFFFF) {
+      throw new IllegalArgumentException("string is too long for the catalog: " + string.substring(0, 32) + "...");
+    }
+    refs.put(string, encoded.size());
+    encoded.add(bytes);
+  }
+
+  private static int ref(final Map<String, Integer> refs, final String string) {
+    return string == null ? NO_STRING : refs.get(string);
+  }
+}
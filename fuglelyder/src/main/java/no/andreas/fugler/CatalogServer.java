@@ -0,0 +1,242 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Local HTTP endpoint over the in-memory catalog and the cached media.
+//
+//   GET /birds                        every bird
+//   GET /birds/{bird}                 a bird with its sounds and images, looked up by slug, id or name
+//   GET /birds/{bird}/sounds          the bird's sounds
+//   GET /birds/{bird}/images          the bird's images
+//   GET /birds/{bird}/sounds/{id}     the cached MP3, Range requests supported
+//   GET /birds/{bird}/images/{slug}   the cached image, Range requests supported
+final class CatalogServer {
+  private static final Pattern SINGLE_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private FileTime loadedAt;
+
+  CatalogServer(final InetSocketAddress address, final int threads) throws IOException {
+    this.server = HttpServer.create(address, 0);
+    this.executor = Executors.newFixedThreadPool(threads);
+    server.createContext("/birds", this::handle);
+    server.setExecutor(executor);
+  }
+
+  void start() throws IOException {
+    catalog();
+    server.start();
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  InetSocketAddress address() {
+    return server.getAddress();
+  }
+
+  // The loaded catalog, reloaded when another fugl process has rewritten the catalog file
+  private synchronized Catalog catalog() throws IOException {
+    final FileTime modified = Files.exists(FuglelyderSkraper.CATALOG_SAVE)
+      ? Files.getLastModifiedTime(FuglelyderSkraper.CATALOG_SAVE)
+      : null;
+    if (!Objects.equals(modified, loadedAt)) {
+      Catalog.invalidate();
+      loadedAt = modified;
+    }
+    try {
+      return Catalog.get();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("catalog could not be loaded", e);
+    }
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    try (exchange) {
+      final String method = exchange.getRequestMethod();
+      if (!method.equals("GET") && !method.equals("HEAD")) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        sendText(exchange, 405, "method not allowed");
+        return;
+      }
+      try {
+        route(exchange);
+      } catch (IOException | RuntimeException e) {
+        System.err.println("failed to answer " + exchange.getRequestURI() + ": " + e);
+        // Once the headers are out, closing the exchange is all that is left
+        if (exchange.getResponseCode() == -1) {
+          sendText(exchange, 500, "internal error");
+        }
+      }
+    }
+  }
+
+  private void route(final HttpExchange exchange) throws IOException {
+    final String[] parts = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+    final Catalog catalog = catalog();
+    if (parts.length == 1) {
+      sendJson(exchange, catalog.birds().stream().map(Json::bird).collect(Collectors.joining(",", "[", "]")));
+      return;
+    }
+    final Bird bird = catalog.find(parts[1]);
+    if (bird == null) {
+      sendText(exchange, 404, "bird `" + parts[1] + "` was not found in the cache");
+      return;
+    }
+    final List<BirdSound> sounds = catalog.sounds(bird);
+    final List<BirdImage> images = catalog.images(bird);
+    if (parts.length == 2) {
+      sendJson(exchange, "{\"bird\":" + Json.bird(bird)
+        + ",\"sounds\":" + (sounds == null ? "null" : sounds.stream().map(Json::sound).collect(Collectors.joining(",", "[", "]")))
+        + ",\"images\":" + (images == null ? "null" : images.stream().map(Json::image).collect(Collectors.joining(",", "[", "]")))
+        + "}");
+    } else if (parts.length == 3 && parts[2].equals("sounds") && sounds != null) {
+      sendJson(exchange, sounds.stream().map(Json::sound).collect(Collectors.joining(",", "[", "]")));
+    } else if (parts.length == 3 && parts[2].equals("images") && images != null) {
+      sendJson(exchange, images.stream().map(Json::image).collect(Collectors.joining(",", "[", "]")));
+    } else if (parts.length == 4 && parts[2].equals("sounds") && sounds != null) {
+      final String id = parts[3].replaceFirst("\\.mp3$", "");
+      final BirdSound sound = sounds.stream().filter(s -> String.valueOf(s.getId()).equals(id)).findFirst().orElse(null);
+      sendMedia(exchange, sound == null ? null : FuglelyderSkraper.soundSave(bird, sound), "audio/mpeg");
+    } else if (parts.length == 4 && parts[2].equals("images") && images != null) {
+      final BirdImage image = images.stream().filter(i -> parts[3].equals(i.getSlug())).findFirst().orElse(null);
+      sendMedia(exchange, image == null ? null : FuglelyderSkraper.imageSave(bird, image), imageType(parts[3]));
+    } else {
+      sendText(exchange, 404, "not found");
+    }
+  }
+
+  // Stream a cached file, loose or its slice of a pack, honouring a single byte range. The media is mapped
+  // under the store's lock, and the mapping keeps its bytes if another process repacks or evicts it later.
+  static void sendMedia(final HttpExchange exchange, final Path save, final String contentType) throws IOException {
+    final ByteBuffer media = save == null ? null : map(save);
+    if (media == null) {
+      sendText(exchange, 404, "not in the media cache");
+      return;
+    }
+    MediaStore.get().touch(save);
+    final long size = media.remaining();
+    long start = 0;
+    long end = size - 1;
+    int status = 200;
+    final String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null) {
+      final long[] bounds = range(range, size);
+      if (bounds == null) {
+        exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+        sendText(exchange, 416, "range not satisfiable");
+        return;
+      }
+      if (bounds.length == 2) {
+        start = bounds[0];
+        end = bounds[1];
+        status = 206;
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+      }
+    }
+    final long length = end - start + 1;
+    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if (exchange.getRequestMethod().equals("HEAD") || length == 0) {
+      exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, length);
+    final WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+    final ByteBuffer body = media.slice((int) start, (int) length);
+    while (body.hasRemaining()) {
+      out.write(body);
+    }
+  }
+
+  // The media bytes, or null when the cache does not have them
+  private static ByteBuffer map(final Path save) throws IOException {
+    try {
+      return MediaStore.get().map(save);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  // Start and end of a single "bytes=" range, an empty array to ignore the header, or null if unsatisfiable
+  static long[] range(final String header, final long size) {
+    final Matcher matcher = SINGLE_RANGE.matcher(header.strip());
+    if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+      return new long[0];
+    }
+    try {
+      if (matcher.group(1).isEmpty()) {
+        final long suffix = Long.parseLong(matcher.group(2));
+        return suffix == 0 || size == 0 ? null : new long[] {Math.max(0, size - suffix), size - 1};
+      }
+      final long start = Long.parseLong(matcher.group(1));
+      final long end = matcher.group(2).isEmpty() ? size - 1 : Math.min(Long.parseLong(matcher.group(2)), size - 1);
+      if (start >= size) {
+        return null;
+      }
+      return start > end ? new long[0] : new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return new long[0];
+    }
+  }
+
+  private static String imageType(final String slug) {
+    final String name = slug.toLowerCase(Locale.ROOT);
+    if (name.endsWith(".png")) {
+      return "image/png";
+    } else if (name.endsWith(".gif")) {
+      return "image/gif";
+    } else if (name.endsWith(".webp")) {
+      return "image/webp";
+    }
+    return "image/jpeg";
+  }
+
+  private static void sendJson(final HttpExchange exchange, final String json) throws IOException {
+    send(exchange, 200, "application/json; charset=utf-8", json);
+  }
+
+  private static void sendText(final HttpExchange exchange, final int status, final String text) throws IOException {
+    send(exchange, status, "text/plain; charset=utf-8", text + "\n");
+  }
+
+  private static void send(final HttpExchange exchange, final int status, final String contentType, final String body)
+  throws IOException {
+    final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.getResponseHeaders().set("Content-Length", Integer.toString(bytes.length));
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,305 @@
+package no.andreas.fugler;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+// Resized copies of the downloaded gallery images, stored as <root>/<size>/<hash>.jpg where hash is the
+// SHA-256 of the source file, so identical sources share derivatives and a changed source gets new ones.
+// The hash of every source is remembered by size and mtime in sources.bin, so unchanged sources are not
+// read again. Sizes are the longest side in pixels; smaller images are re-encoded, never enlarged.
+final class DerivativeCache {
+  static final int MAGIC = 0x46554456;
+  static final short VERSION = 1;
+  static final List<Integer> DEFAULT_SIZES = List.of(160, 640);
+
+  private static final float JPEG_QUALITY = 0.85f;
+
+  static {
+    // Only offscreen images are drawn, never a window
+    System.setProperty("java.awt.headless", "true");
+  }
+
+  record Source(long size, long modified, String hash) {}
+
+  record Report(int generated, int unchanged, int missing, List<String> failures) {}
+
+  private enum Outcome { GENERATED, UNCHANGED, MISSING }
+
+  private final Path root;
+  private final Map<String, Source> sources = new ConcurrentHashMap<>();
+
+  private DerivativeCache(final Path root) {
+    this.root = root;
+  }
+
+  static DerivativeCache load(final Path root) throws IOException {
+    final DerivativeCache cache = new DerivativeCache(root);
+    final Path save = root.resolve("sources.bin");
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(save)))) {
+      if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+        System.err.println("ignoring unknown derivative source file " + save + ", every image will be hashed");
+        return cache;
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        cache.sources.put(in.readUTF(), new Source(in.readLong(), in.readLong(), in.readUTF()));
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing generated yet
+    }
+    return cache;
+  }
+
+  void save() throws IOException {
+    Files.createDirectories(root);
+    final Path save = root.resolve("sources.bin");
+    final Path temp = Files.createTempFile(root.toAbsolutePath(), "sources.bin", ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+        final Map<String, Source> sorted = new TreeMap<>(sources);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, Source> entry : sorted.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue().size());
+          out.writeLong(entry.getValue().modified());
+          out.writeUTF(entry.getValue().hash());
+        }
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  Path path(final String hash, final int size) {
+    return root.resolve(Integer.toString(size)).resolve(hash + ".jpg");
+  }
+
+  // The derivatives on disk for a source by size, empty when the source changed since they were made
+  Map<Integer, Path> derivatives(final Path source) throws IOException {
+    final Source known = sources.get(source.toString());
+    final Map<Integer, Path> derivatives = new TreeMap<>();
+    if (known == null || !known.equals(stat(source, known.hash()))) {
+      return derivatives;
+    }
+    for (int size : sizes()) {
+      final Path derivative = path(known.hash(), size);
+      if (Files.exists(derivative)) {
+        derivatives.put(size, derivative);
+      }
+    }
+    return derivatives;
+  }
+
+  // Sizes that have a directory in the cache
+  private List<Integer> sizes() throws IOException {
+    final List<Integer> sizes = new ArrayList<>();
+    if (!Files.isDirectory(root)) {
+      return sizes;
+    }
+    try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, "[0-9]*")) {
+      for (Path directory : directories) {
+        sizes.add(Integer.parseInt(directory.getFileName().toString()));
+      }
+    }
+    Collections.sort(sizes);
+    return sizes;
+  }
+
+  // Make the missing derivatives of every source in the given sizes on a fork-join pool. Sources are
+  // decoded at most once, and not at all when every size already exists for their current content.
+  Report generate(final List<Path> images, final List<Integer> sizes, final int parallelism, final boolean force,
+  final Metrics.Phase phase) throws IOException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+    for (int size : sizes) {
+      if (size < 1) {
+        throw new IllegalArgumentException("sizes must be positive");
+      }
+      Files.createDirectories(root.resolve(Integer.toString(size)));
+    }
+    final AtomicInteger generated = new AtomicInteger();
+    final AtomicInteger unchanged = new AtomicInteger();
+    final AtomicInteger missing = new AtomicInteger();
+    final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    final Set<String> replaced = ConcurrentHashMap.newKeySet();
+    final List<Callable<Void>> tasks = new ArrayList<>(images.size());
+    for (Path image : images) {
+      tasks.add(() -> {
+        try {
+          switch (generate(image, sizes, force, replaced)) {
+            case GENERATED -> generated.incrementAndGet();
+            case UNCHANGED -> unchanged.incrementAndGet();
+            case MISSING -> missing.incrementAndGet();
+          }
+        } catch (IOException | RuntimeException e) {
+          failures.add(image + ": " + e.getMessage());
+        } finally {
+          phase.advance();
+        }
+        return null;
+      });
+    }
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invokeAll(tasks);
+    } finally {
+      pool.shutdownNow();
+    }
+    // Sources that are no longer in the catalog
+    final Set<String> listed = new HashSet<>();
+    images.forEach(image -> listed.add(image.toString()));
+    for (Map.Entry<String, Source> entry : sources.entrySet()) {
+      if (!listed.contains(entry.getKey())) {
+        replaced.add(entry.getValue().hash());
+        sources.remove(entry.getKey());
+      }
+    }
+    // Derivatives of content no source has any more
+    final Set<String> current = new HashSet<>();
+    sources.values().forEach(source -> current.add(source.hash()));
+    for (String hash : replaced) {
+      if (!current.contains(hash)) {
+        for (int size : sizes()) {
+          Files.deleteIfExists(path(hash, size));
+        }
+      }
+    }
+    return new Report(generated.get(), unchanged.get(), missing.get(), List.copyOf(failures));
+  }
+
+  private Outcome generate(final Path image, final List<Integer> sizes, final boolean force, final Set<String> replaced)
+  throws IOException {
+    final Source known = sources.get(image.toString());
+    final Source stat = stat(image, known == null ? null : known.hash());
+    if (stat == null) {
+      if (known != null) {
+        replaced.add(known.hash());
+        sources.remove(image.toString());
+      }
+      return Outcome.MISSING;
+    }
+    byte[] bytes = null;
+    Source source = stat;
+    if (force || known == null || !known.equals(stat)) {
+      bytes = read(image);
+      source = new Source(stat.size(), stat.modified(), PageValidators.hash(bytes));
+    }
+    final List<Integer> needed = new ArrayList<>();
+    for (int size : sizes) {
+      if (force || !Files.exists(path(source.hash(), size))) {
+        needed.add(size);
+      }
+    }
+    if (!needed.isEmpty()) {
+      if (bytes == null) {
+        bytes = read(image);
+      }
+      final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes));
+      if (decoded == null) {
+        throw new IOException("not an image format that can be decoded");
+      }
+      for (int size : needed) {
+        write(resize(decoded, size), path(source.hash(), size));
+      }
+    }
+    if (known != null && !known.hash().equals(source.hash())) {
+      replaced.add(known.hash());
+    }
+    sources.put(image.toString(), source);
+    return needed.isEmpty() ? Outcome.UNCHANGED : Outcome.GENERATED;
+  }
+
+  // Size and mtime of the source, loose or packed, or null when it is not downloaded
+  private static Source stat(final Path image, final String hash) throws IOException {
+    final MediaStore.Location location = MediaStore.get().locate(image);
+    return location == null ? null : new Source(location.length(), location.modified(), hash);
+  }
+
+  private static byte[] read(final Path image) throws IOException {
+    final ByteBuffer mapped = MediaStore.get().map(image);
+    final byte[] bytes = new byte[mapped.remaining()];
+    mapped.get(bytes);
+    return bytes;
+  }
+
+  // Scaled so the longest side is at most size, halving in steps first since a single bilinear pass over
+  // a large reduction skips most of the source pixels. Transparency is flattened onto white.
+  static BufferedImage resize(final BufferedImage source, final int size) {
+    final double scale = Math.min(1.0, (double) size / Math.max(source.getWidth(), source.getHeight()));
+    final int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+    final int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+    BufferedImage current = source;
+    int stepWidth = source.getWidth();
+    int stepHeight = source.getHeight();
+    do {
+      stepWidth = Math.max(width, stepWidth / 2);
+      stepHeight = Math.max(height, stepHeight / 2);
+      final BufferedImage step = new BufferedImage(stepWidth, stepHeight, BufferedImage.TYPE_INT_RGB);
+      final Graphics2D graphics = step.createGraphics();
+      try {
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.drawImage(current, 0, 0, stepWidth, stepHeight, Color.WHITE, null);
+      } finally {
+        graphics.dispose();
+      }
+      current = step;
+    } while (stepWidth != width || stepHeight != height);
+    return current;
+  }
+
+  private static void write(final BufferedImage image, final Path save) throws IOException {
+    final Path temp = Files.createTempFile(save.toAbsolutePath().getParent(), save.getFileName().toString(), ".tmp");
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    try {
+      try (ImageOutputStream out = ImageIO.createImageOutputStream(temp.toFile())) {
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        writer.setOutput(out);
+        writer.write(null, new IIOImage(image, null, null), param);
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      writer.dispose();
+      Files.deleteIfExists(temp);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Downloads media with a fixed number of workers pulling from a bounded queue.
+// Submitting blocks while the queue is full, so producers are held back by the transfers.
+// Every transfer first claims its file in the lock of the media directory, so fugl processes sharing
+// the directory split the work between them instead of fetching the same file twice.
+class DownloadEngine {
+  static final int DEFAULT_PARALLELISM = 4;
+  static final int DEFAULT_PER_HOST = 4;
+
+  // replace fetches the file even when it is already cached, the new copy is renamed over the old one
+  record Task(URI uri, Path save, boolean replace) {
+    Task(final URI uri, final Path save) {
+      this(uri, save, false);
+    }
+  }
+
+  record Failure(Task task, String reason) {
+    @Override
+    public String toString() {
+      return task.uri() + ": " + reason;
+    }
+  }
+
+  // claimed are the tasks another process was already downloading
+  record Report(int downloaded, int skipped, List<Task> claimed, List<Failure> failures) {}
+
+  private static final Task POISON = new Task(null, null);
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+  private final Transport transport;
+  private final MediaStore store;
+  private final MediaChecksums checksums;
+  private final Metrics.Phase phase;
+  private final RequestScheduler scheduler;
+  private final int parallelism;
+  private final int perHostLimit;
+  private final BlockingQueue<Task> queue;
+  private final ExecutorService workers;
+  private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+  private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+  private final List<Task> claimed = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger downloaded = new AtomicInteger();
+  private final AtomicInteger skipped = new AtomicInteger();
+
+  // Every task submitted, skipped or transferred, counts as one item of phase
+  DownloadEngine(final Transport transport, final int parallelism, final int perHostLimit, final Metrics.Phase phase)
+  throws IOException {
+    if (parallelism < 1 || perHostLimit < 1) {
+      throw new IllegalArgumentException("parallelism and per host limit must be at least 1");
+    }
+    this.transport = transport;
+    this.store = MediaStore.get();
+    this.checksums = MediaChecksums.get();
+    this.phase = phase;
+    this.scheduler = RequestScheduler.get();
+    this.parallelism = parallelism;
+    this.perHostLimit = perHostLimit;
+    this.queue = new ArrayBlockingQueue<>(parallelism * 4);
+    this.workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "fugl-download");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < parallelism; i++) {
+      workers.execute(this::work);
+    }
+  }
+
+  // Queue a transfer, blocking while the queue is full. Files that already exist, loose or packed, are skipped
+  // unless the task replaces them.
+  void submit(final Task task) throws InterruptedException {
+    if (!task.replace() && store.exists(task.save())) {
+      skipped.incrementAndGet();
+      phase.advance();
+      return;
+    }
+    queue.put(task);
+  }
+
+  // Wait for every queued transfer and report how it went
+  Report finish() throws InterruptedException, IOException {
+    for (int i = 0; i < parallelism; i++) {
+      queue.put(POISON);
+    }
+    workers.shutdown();
+    while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+      // Keep waiting; large mirrors take a while
+    }
+    store.saveUsage();
+    checksums.save();
+    return new Report(downloaded.get(), skipped.get(), List.copyOf(claimed), List.copyOf(failures));
+  }
+
+  private void work() {
+    try {
+      for (Task task = queue.take(); task != POISON; task = queue.take()) {
+        final Semaphore permits = hostPermits.computeIfAbsent(task.uri().getHost(), host -> new Semaphore(perHostLimit));
+        permits.acquire();
+        try {
+          claimAndTransfer(task);
+        } catch (RuntimeException e) {
+          // A bug or a bad task fails that task only, the worker goes on with the queue
+          failures.add(new Failure(task, e.toString()));
+        } finally {
+          permits.release();
+          phase.advance();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // The claim is held until the file is in place, another process that finds it done skips it
+  private void claimAndTransfer(final Task task) throws InterruptedException {
+    try (CacheLock.Held claim = CacheLock.of(task.save().getParent()).claim(task.save().getFileName().toString())) {
+      if (claim == null) {
+        claimed.add(task);
+      } else if (!task.replace() && store.exists(task.save())) {
+        skipped.incrementAndGet();
+      } else {
+        transfer(task);
+      }
+    } catch (IOException e) {
+      failures.add(new Failure(task, "could not claim: " + e));
+    }
+  }
+
+  // Media are written to a .part file next to the destination and renamed into place once complete.
+  // A .part.len file records the expected length and validator, so a later run can resume with a Range request.
+  private void transfer(final Task task) throws InterruptedException {
+    final Path partial = partialOf(task.save());
+    final Path meta = metaOf(task.save());
+    try {
+      for (int restart = 0; restart < 2; restart++) {
+        // The partial file is looked at again on every attempt, a dropped connection may have left more of it
+        final Sent sent = scheduler.send(Metrics.MEDIA, () -> send(task, partial, meta),
+          attempt -> attempt.response() == null ? 200 : attempt.response().statusCode(),
+          attempt -> attempt.response() == null ? null : attempt.response().headers().firstValue("Retry-After").orElse(null));
+        final HttpResponse<Path> response = sent.response();
+        final long have = sent.have();
+        if (response == null) {
+          complete(task, partial, meta);
+          return;
+        }
+        final boolean ok = response.statusCode() / 100 == 2 && response.body() != null;
+        Metrics.get().request(Metrics.MEDIA, System.nanoTime() - sent.start(),
+          ok ? received(partial, response.statusCode() == 206 ? have : 0) : 0,
+          ok ? Metrics.Outcome.OK : Metrics.Outcome.FAILED);
+        if (response.statusCode() == 416 && have > 0) {
+          // The partial file no longer fits the remote one, start over
+          Files.deleteIfExists(partial);
+          Files.deleteIfExists(meta);
+          Metrics.get().retry(Metrics.MEDIA);
+          continue;
+        }
+        if (!ok) {
+          failures.add(new Failure(task, "HTTP " + response.statusCode()));
+          return;
+        }
+        final Partial expected = Partial.read(meta);
+        final long size = Files.size(partial);
+        if (expected != null && expected.length() >= 0 && size != expected.length()) {
+          failures.add(new Failure(task, "incomplete, got " + size + " of " + expected.length() + " bytes"));
+          return;
+        }
+        complete(task, partial, meta);
+        return;
+      }
+      failures.add(new Failure(task, "server keeps rejecting the requested range"));
+    } catch (IOException e) {
+      // The partial file is kept so the next run can resume it
+      failures.add(new Failure(task, e.toString()));
+    }
+  }
+
+  // A response of null means the partial file is already complete and nothing was sent
+  private record Sent(HttpResponse<Path> response, long have, long start) {}
+
+  private Sent send(final Task task, final Path partial, final Path meta) throws IOException, InterruptedException {
+    final Partial known = Partial.read(meta);
+    final long have = known != null && Files.exists(partial) ? Files.size(partial) : 0;
+    if (known != null && known.length() >= 0 && have == known.length()) {
+      return new Sent(null, have, 0);
+    }
+    final HttpRequest.Builder request = transport.request(task.uri());
+    if (have > 0) {
+      request.header("Range", "bytes=" + have + "-");
+      if (known.validator() != null) {
+        request.header("If-Range", known.validator());
+      }
+    }
+    final long start = System.nanoTime();
+    return new Sent(transport.client().send(request.build(), info -> bodyHandler(info, have, partial, meta)), have, start);
+  }
+
+  private static HttpResponse.BodySubscriber<Path> bodyHandler(final HttpResponse.ResponseInfo info, final long have,
+  final Path partial, final Path meta) {
+    final int status = info.statusCode();
+    final String validator = validatorOf(info);
+    if (status == 206 && have > 0) {
+      final long[] range = contentRange(info);
+      if (range == null || range[0] != have) {
+        return HttpResponse.BodySubscribers.replacing(null);
+      }
+      Partial.write(meta, new Partial(range[1], validator));
+      return HttpResponse.BodySubscribers.ofFile(partial, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    if (status / 100 == 2 && status != 206) {
+      Partial.write(meta, new Partial(info.headers().firstValueAsLong("Content-Length").orElse(-1), validator));
+      return HttpResponse.BodySubscribers.ofFile(partial,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    return HttpResponse.BodySubscribers.replacing(null);
+  }
+
+  // The length was checked against the one the server announced, so it is recorded with the checksum for verify
+  private void complete(final Task task, final Path partial, final Path meta) throws IOException {
+    final String hash;
+    try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.READ)) {
+      hash = MediaChecksums.hash(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+    Files.move(partial, task.save(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(meta);
+    final BasicFileAttributes attributes = Files.readAttributes(task.save(), BasicFileAttributes.class);
+    checksums.record(task.save(), attributes.size(), hash, attributes.lastModifiedTime().toMillis());
+    store.added(task.save(), attributes.size());
+    downloaded.incrementAndGet();
+  }
+
+  // Bytes the last request added to a partial file that held offset bytes before it
+  private static long received(final Path partial, final long offset) {
+    try {
+      return Math.max(0, Files.size(partial) - offset);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  static Path partialOf(final Path save) {
+    return save.resolveSibling(save.getFileName() + ".part");
+  }
+
+  static Path metaOf(final Path save) {
+    return save.resolveSibling(save.getFileName() + ".part.len");
+  }
+
+  // Strong ETag, or Last-Modified, to send as If-Range when resuming
+  private static String validatorOf(final HttpResponse.ResponseInfo info) {
+    final String etag = info.headers().firstValue("ETag").orElse(null);
+    if (etag != null && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return info.headers().firstValue("Last-Modified").orElse(null);
+  }
+
+  // Start and total length from a "bytes start-end/total" Content-Range, total is -1 when unknown
+  private static long[] contentRange(final HttpResponse.ResponseInfo info) {
+    final String range = info.headers().firstValue("Content-Range").orElse("");
+    final Matcher matcher = CONTENT_RANGE.matcher(range.strip());
+    if (!matcher.matches()) {
+      return null;
+    }
+    return new long[] {
+      Long.parseLong(matcher.group(1)),
+      matcher.group(3).equals("*") ? -1 : Long.parseLong(matcher.group(3))
+    };
+  }
+
+  private record Partial(long length, String validator) {
+    static Partial read(final Path meta) throws IOException {
+      if (!Files.exists(meta)) {
+        return null;
+      }
+      final Properties properties = new Properties();
+      try (Reader reader = Files.newBufferedReader(meta)) {
+        properties.load(reader);
+      }
+      try {
+        return new Partial(Long.parseLong(properties.getProperty("length", "-1")), properties.getProperty("validator"));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    // Best effort; without it the transfer still completes but cannot be resumed
+    static void write(final Path meta, final Partial partial) {
+      final Properties properties = new Properties();
+      properties.setProperty("length", Long.toString(partial.length()));
+      if (partial.validator() != null) {
+        properties.setProperty("validator", partial.validator());
+      }
+      try (Writer writer = Files.newBufferedWriter(meta)) {
+        properties.store(writer, null);
+      } catch (IOException e) {
+        System.err.println("could not record the expected length in " + meta + ": " + e);
+      }
+    }
+  }
+}
@@ -3,16 +3,23 @@ package no.andreas.fugler;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.stream.Stream;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.UnaryOperator;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.lang.InterruptedException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Command(
   name = "fugl",
@@ -20,14 +27,53 @@ import java.nio.file.Path;
     ListCommand.class,
     DownloadCommand.class,
     DeleteCommand.class,
-    UpdateCommand.class
+    UpdateCommand.class,
+    MirrorCommand.class,
+    SyncCommand.class,
+    MergeCommand.class,
+    AnalyzeCommand.class,
+    ThumbnailsCommand.class,
+    PackCommand.class,
+    GcCommand.class,
+    VerifyCommand.class,
+    UnpackCommand.class,
+    SearchCommand.class,
+    ServeCommand.class
   },
   mixinStandardHelpOptions = true
 )
 public class FuglelyderCLI extends FuglelyderSkraper {
+  @Option(names = "--metrics-out", scope = CommandLine.ScopeType.INHERIT,
+    description = "Write request, transfer and phase metrics here when the command ends: Prometheus text for a .prom file, JSON otherwise")
+  Path metricsOut;
+
+  @Option(names = "--base-url", scope = CommandLine.ScopeType.INHERIT, defaultValue = "${env:FUGL_BASE_URL:-" + DEFAULT_WEBSITE + "}",
+    description = "Site to crawl and download from, such as a local mirror or stub, also read from FUGL_BASE_URL (default: ${DEFAULT-VALUE})")
+  void setBaseUrl(final String url) {
+    setWebsite(url);
+  }
+
   public static void main(String[] args) throws IOException, InterruptedException, ClassNotFoundException {
     Files.createDirectories(Path.of("birds"));
-    int exitCode = new CommandLine(new FuglelyderCLI()).execute(args);
+    final FuglelyderCLI cli = new FuglelyderCLI();
+    final Metrics metrics = Metrics.get();
+    // A shutdown hook so the metrics are also written when serve, or a long download, is interrupted
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      if (cli.metricsOut != null) {
+        try {
+          metrics.write(cli.metricsOut, String.join(" ", args));
+        } catch (IOException e) {
+          System.err.println("could not write metrics to " + cli.metricsOut + ": " + e);
+        }
+      }
+      try {
+        MediaStore.flush();
+        MediaChecksums.flush();
+      } catch (IOException e) {
+        System.err.println("could not save the media indexes: " + e);
+      }
+    }));
+    int exitCode = new CommandLine(cli).execute(args);
     System.exit(exitCode);
     // System.out.println("Select a command to use. Run without argument or subargument for help.");
   }
@@ -51,7 +97,7 @@ class ListCommand extends FuglelyderSkraper {
   int allSounds() throws IOException, ClassNotFoundException {
     // List all sounds by ID for every bird
     final List<Bird> birdIndex = getBirdIndex();
-    final HashMap<Bird, List<BirdSound>> soundIndex = getSoundIndex(birdIndex);
+    final Map<Bird, List<BirdSound>> soundIndex = getSoundIndex(birdIndex);
     for (Bird bird : soundIndex.keySet()) {
       System.out.println(bird);
       for (BirdSound sound : soundIndex.get(bird)) {
@@ -66,7 +112,7 @@ class ListCommand extends FuglelyderSkraper {
   int allImages() throws IOException, ClassNotFoundException {
     // List all sounds by ID for every bird
     final List<Bird> birdIndex = getBirdIndex();
-    final HashMap<Bird, List<BirdImage>> imageIndex = getImageIndex(birdIndex);
+    final Map<Bird, List<BirdImage>> imageIndex = getImageIndex(birdIndex);
     for (Bird bird : imageIndex.keySet()) {
       System.out.println(bird);
       for (BirdImage sound : imageIndex.get(bird)) {
@@ -80,39 +126,57 @@ class ListCommand extends FuglelyderSkraper {
   @Command(name = "sounds")
   int sounds(@Parameters() String[] birds) throws IOException, ClassNotFoundException {
     // List all sounds by ID for each bird
-    for (String bird : birds) {
-      final List<Bird> birdIndex = getBirdIndex();
-      final HashMap<Bird, List<BirdSound>> soundIndex = getSoundIndex(birdIndex);
-      // TODO: Create better method of checking of contains; will always return false as is
-      if (soundIndex.containsKey(new Bird(null, bird, null))) {
-        for (BirdSound sound : soundIndex.get(new Bird(null, bird, null))) {
-          System.out.println(sound);
+    final Catalog catalog = getSoundCatalog();
+    int missing = 0;
+    for (String key : birds) {
+      final Bird bird = catalog.find(key);
+      final List<BirdSound> sounds = bird == null ? null : catalog.sounds(bird);
+      if (sounds != null) {
+        for (BirdSound sound : sounds) {
+          System.out.println(describe(sound));
         }
       } else {
-        System.out.println("bird `" + bird + "` was not found in the cache");
+        System.out.println("bird `" + key + "` was not found in the cache");
+        missing++;
       }
     }
-    // TODO: Create a useful exit code
-    return 0;
+    return missing == 0 ? 0 : 1;
   }
 
   @Command(name = "images")
-  int images(@Parameters String[] birds) throws IOException, ClassNotFoundException {
-    // List all sounds by ID for each bird
-    for (String bird : birds) {
-      final List<Bird> birdIndex = getBirdIndex();
-      final HashMap<Bird, List<BirdImage>> imageIndex = getImageIndex(birdIndex);
-      // TODO: Create better method of checking of contains; will always return false as is
-      if (imageIndex.containsKey(new Bird(null, bird, null))) {
-        for (BirdImage image : imageIndex.get(new Bird(null, bird, null))) {
+  int images(@Parameters String[] birds,
+  @Option(names = "--derivatives", description = "Also show the resized copies made by `fugl thumbnails`") boolean derivatives)
+  throws IOException, ClassNotFoundException {
+    // List all images for each bird
+    final Catalog catalog = getImageCatalog();
+    final DerivativeCache cache = derivatives ? DerivativeCache.load(DERIVATIVE_SAVES) : null;
+    int missing = 0;
+    for (String key : birds) {
+      final Bird bird = catalog.find(key);
+      final List<BirdImage> images = bird == null ? null : catalog.images(bird);
+      if (images != null) {
+        for (BirdImage image : images) {
           System.out.println(image);
+          if (cache != null) {
+            for (Map.Entry<Integer, Path> derivative : cache.derivatives(imageSave(bird, image)).entrySet()) {
+              System.out.println("\t" + derivative.getKey() + "\t" + derivative.getValue());
+            }
+          }
         }
       } else {
-        System.out.println("bird `" + bird + "` was not found in the cache");
+        System.out.println("bird `" + key + "` was not found in the cache");
+        missing++;
       }
     }
-    // TODO: Create a useful exit code
-    return 0;
+    return missing == 0 ? 0 : 1;
+  }
+  // A sound with its length, bitrate, sample rate and file size once `fugl analyze sounds` has read them
+  static String describe(final BirdSound sound) {
+    if (!sound.isAnalyzed()) {
+      return sound.toString();
+    }
+    return sound + "\t" + String.format(Locale.ROOT, "%.1f s", sound.getDurationMillis() / 1000.0)
+      + "\t" + sound.getBitrate() + " kbit/s\t" + sound.getSampleRate() + " Hz\t" + sound.getSize() + " bytes";
   }
   // default -> {
   //   System.out.println("List the pieces of data that are cached");
@@ -120,34 +184,138 @@ class ListCommand extends FuglelyderSkraper {
   // }
 }
 
+// How hard the subcommands that talk to fuglelyder.net may push it
+class RequestOptions {
+  @Option(names = "--rate", description = "Requests per second to the site (default: ${DEFAULT-VALUE})")
+  double rate = RequestScheduler.Limits.DEFAULT.rate();
+
+  @Option(names = "--burst", description = "Requests that may go out at once after a quiet spell (default: ${DEFAULT-VALUE})")
+  int burst = RequestScheduler.Limits.DEFAULT.burst();
+
+  @Option(names = "--max-in-flight",
+    description = "Most requests in flight; halved whenever the site answers 429 or 503 (default: ${DEFAULT-VALUE})")
+  int maxInFlight = RequestScheduler.Limits.DEFAULT.maxConcurrency();
+
+  @Option(names = "--retries", description = "Retries for a failed request, with jittered backoff (default: ${DEFAULT-VALUE})")
+  int retries = RequestScheduler.Limits.DEFAULT.retries();
+
+  @Option(names = "--connect-timeout", description = "Seconds to wait for a connection (default: ${DEFAULT-VALUE})")
+  long connectTimeout = Transport.Settings.DEFAULT.connectTimeout().toSeconds();
+
+  @Option(names = "--timeout", description = "Seconds to wait for a response to start arriving (default: ${DEFAULT-VALUE})")
+  long timeout = Transport.Settings.DEFAULT.requestTimeout().toSeconds();
+
+  void apply() {
+    RequestScheduler.configure(new RequestScheduler.Limits(rate, burst, maxInFlight, retries));
+    Transport.configure(new Transport.Settings(Duration.ofSeconds(connectTimeout), Duration.ofSeconds(timeout)));
+  }
+}
+
+// How large the subcommands that download media may let the media cache grow
+class CacheOptions {
+  @Option(names = "--max-cache-size", converter = SizeConverter.class,
+    description = "Evict the least recently used media when the cache grows past this size, e.g. 500M or 2G")
+  long maxCacheSize;
+
+  void apply() throws IOException {
+    MediaStore.get().limit(maxCacheSize);
+  }
+}
+
+// Which slice of the birds the crawling and downloading subcommands work on, so a mirror can be spread
+// over machines and put back together with `fugl merge`
+class ShardOptions {
+  @Option(names = "--shard", converter = ShardConverter.class,
+    description = "Only the birds of shard i of n, split by bird id, e.g. 2/4 (default: all birds)")
+  Shard shard = Shard.ALL;
+
+  List<Bird> birds(final List<Bird> birdIndex) {
+    return shard.of(birdIndex);
+  }
+}
+
+class ShardConverter implements CommandLine.ITypeConverter<Shard> {
+  @Override
+  public Shard convert(final String value) {
+    try {
+      return Shard.parse(value);
+    } catch (IllegalArgumentException e) {
+      throw new CommandLine.TypeConversionException(e.getMessage());
+    }
+  }
+}
+
+// Byte counts such as 1048576, 512K, 1.5G or 2GiB, in powers of 1024
+class SizeConverter implements CommandLine.ITypeConverter<Long> {
+  private static final Pattern SIZE = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*([KMGT]?)(?:I?B)?", Pattern.CASE_INSENSITIVE);
+
+  @Override
+  public Long convert(final String value) {
+    final Matcher matcher = SIZE.matcher(value.trim());
+    if (!matcher.matches()) {
+      throw new CommandLine.TypeConversionException("'" + value + "' is not a size like 500M or 2G");
+    }
+    final int power = matcher.group(2).isEmpty() ? 0 : "KMGT".indexOf(matcher.group(2).toUpperCase()) + 1;
+    return new BigDecimal(matcher.group(1)).multiply(BigDecimal.valueOf(1L << (10 * power))).longValue();
+  }
+}
+
 @Command(name = "download")
 class DownloadCommand extends FuglelyderSkraper implements Callable<Integer> {
   @Parameters(index = "0")
   String target;
 
+  @Mixin
+  RequestOptions requests;
+
+  @Option(names = "--parallelism", description = "Number of concurrent transfers (default: ${DEFAULT-VALUE})")
+  int parallelism = DownloadEngine.DEFAULT_PARALLELISM;
+
+  @Option(names = "--per-host", description = "Maximum concurrent transfers to a single host (default: ${DEFAULT-VALUE})")
+  int perHost = DownloadEngine.DEFAULT_PER_HOST;
+
+  @Mixin
+  CacheOptions cache;
+
+  @Mixin
+  ShardOptions shards;
+
   @Override
   public Integer call() throws IOException, InterruptedException, ClassNotFoundException {
     // TODO: enable the possibility of downloading specific sounds and images
+    requests.apply();
+    cache.apply();
+    final DownloadEngine.Report report;
     switch (target) {
       case "all-sounds" -> {
         // Download all sounds for all birds
-        final List<Bird> birdIndex = getBirdIndex();
-        final HashMap<Bird, List<BirdSound>> soundIndex = getSoundIndex(birdIndex);
-        downloadAllSounds(soundIndex);
+        final List<Bird> birdIndex = shards.birds(getBirdIndex());
+        final Map<Bird, List<BirdSound>> soundIndex = getSoundIndex(birdIndex);
+        report = downloadAllSounds(soundIndex, parallelism, perHost);
       }
       case "all-images" -> {
         // Download all images for all birds
-        final List<Bird> birdIndex = getBirdIndex();
-        final HashMap<Bird, List<BirdImage>> imageIndex = getImageIndex(birdIndex);
-        downloadAllImages(imageIndex);
+        final List<Bird> birdIndex = shards.birds(getBirdIndex());
+        final Map<Bird, List<BirdImage>> imageIndex = getImageIndex(birdIndex);
+        report = downloadAllImages(imageIndex, parallelism, perHost);
       }
       default -> {
         System.out.println("Download sounds or images to the cache");
         System.out.println("Can be done in batch `all-images and all-sounds` or individually for a bird or a particular image/sound");
+        return 0;
       }
     }
-    // TODO: Create a useful exit code
-    return 0;
+    return printReport(report);
+  }
+
+  static int printReport(final DownloadEngine.Report report) {
+    System.out.println(report.downloaded() + " downloaded, " + report.skipped() + " already cached, "
+      + (report.claimed().isEmpty() ? "" : report.claimed().size() + " left to another fugl process, ")
+      + report.failures().size() + " failed");
+    for (DownloadEngine.Failure failure : report.failures()) {
+      System.err.println("failed " + failure);
+    }
+    return report.failures().isEmpty() ? 0 : 1;
   }
 }
 
@@ -157,45 +325,38 @@ class DeleteCommand extends FuglelyderSkraper implements Callable<Integer> {
   String target;
 
   @Override
-  public Integer call() throws IOException {
+  @SuppressWarnings("try")
+  public Integer call() throws IOException, ClassNotFoundException {
     // add deletion of induvidual sounds and images
     switch (target) {
       case "bird-index" -> {
-        if (!Files.isDirectory(BIRD_INDEX_SAVE)) {
-          System.out.println("Bird index should not be a directory");
-        }
-        if (Files.deleteIfExists(BIRD_INDEX_SAVE)) {
-          System.out.println("Bird index has been successfully deleted");
+        // The sound and image entries hang off the bird index, so they go with it
+        migrateLegacyIndexes();
+        try (CacheLock.Held held = CacheLock.of(CATALOG_SAVE).exclusive()) {
+          Files.deleteIfExists(SEARCH_SAVE);
+          if (Files.deleteIfExists(CATALOG_SAVE)) {
+            System.out.println("Bird index has been successfully deleted, together with the sound and image indexes");
+          }
         }
       }
       case "sound-index" -> {
-        try (Stream<Path> files = Files.walk(SOUND_INDEX_SAVE)) {
-          for (Path file : files.toList()) {
-            Files.deleteIfExists(file);
-          }
+        if (clearCatalog(contents -> contents.withSounds(Map.of()))) {
+          System.out.println("Sound index has been successfully deleted");
         }
-        System.out.println("Sound index has been successfully deleted");
       }
       case "image-index" -> {
-        try (Stream<Path> files = Files.walk(IMAGE_INDEX_SAVE)) {
-          for (Path file : files.toList()) {
-            Files.deleteIfExists(file);
-          }
+        if (clearCatalog(contents -> contents.withImages(Map.of()))) {
+          System.out.println("Image index has been successfully deleted");
         }
       }
       case "sounds" -> {
-        try (Stream<Path> files = Files.walk(SOUND_SAVES)) {
-          for (Path file : files.toList()) {
-            Files.deleteIfExists(file);
-          }
-        }
+        MediaStore.get().deleteAll(SOUND_SAVES);
+      }
+      case "derivatives" -> {
+        deleteTree(DERIVATIVE_SAVES);
       }
       case "images" -> {
-        try (Stream<Path> files = Files.walk(IMAGE_SAVES)) {
-          for (Path file : files.toList()) {
-            Files.deleteIfExists(file);
-          }
-        }
+        MediaStore.get().deleteAll(IMAGE_SAVES);
       }
       default -> {
         System.out.println("Delete the saved content. Delete the entire save or specific content within it*");
@@ -205,6 +366,21 @@ class DeleteCommand extends FuglelyderSkraper implements Callable<Integer> {
     // TODO: Create a useful exit code
     return 0;
   }
+
+  // Without a catalog there is nothing to delete, and none is written
+  @SuppressWarnings("try")
+  private static boolean clearCatalog(final UnaryOperator<CatalogFile.Contents> change) throws IOException {
+    if (openCatalog() == null) {
+      return false;
+    }
+    try (CacheLock.Held held = CacheLock.of(CATALOG_SAVE).exclusive()) {
+      if (openCatalog() == null) {
+        return false;
+      }
+      updateCatalog(change);
+      return true;
+    }
+  }
 }
 
 @Command(name = "update")
@@ -212,26 +388,40 @@ class UpdateCommand extends FuglelyderSkraper implements Callable<Integer> {
   @Parameters()
   String target;
 
+  @Option(names = "--parallelism", description = "Number of bird pages fetched concurrently (default: ${DEFAULT-VALUE})")
+  int parallelism = DEFAULT_CRAWL_PARALLELISM;
+
+  @Option(names = "--force", description = "Re-parse every page, even those that are unchanged since the last update")
+  boolean force;
+
+  @Mixin
+  RequestOptions requests;
+
+  // Every shard scrapes the whole bird list, only the bird pages are split
+  @Mixin
+  ShardOptions shards;
+
   @Override
   public Integer call() throws IOException, ClassNotFoundException {
     // create logic
+    requests.apply();
     switch (target) {
       case "all-indexes" -> {
-        downloadBirdIndex();
-        final List<Bird> birdIndex = readBirdIndex(BIRD_INDEX_SAVE);
-        downloadSoundIndex(birdIndex);
-        downloadImageIndex(birdIndex);
+        reportBirdIndex(downloadBirdIndex(force));
+        final List<Bird> birdIndex = shards.birds(getBirdIndex());
+        reportPages("sound", downloadSoundIndex(birdIndex, parallelism, force), birdIndex);
+        reportPages("image", downloadImageIndex(birdIndex, parallelism, force), birdIndex);
       }
       case "bird-index" -> {
-        downloadBirdIndex();
+        reportBirdIndex(downloadBirdIndex(force));
       }
       case "sound-index" -> {
-        final List<Bird> birdIndex = getBirdIndex();
-        downloadSoundIndex(birdIndex);
+        final List<Bird> birdIndex = shards.birds(getBirdIndex());
+        reportPages("sound", downloadSoundIndex(birdIndex, parallelism, force), birdIndex);
       }
       case "image-index" -> {
-        final List<Bird> birdIndex = getBirdIndex();
-        downloadImageIndex(birdIndex);
+        final List<Bird> birdIndex = shards.birds(getBirdIndex());
+        reportPages("image", downloadImageIndex(birdIndex, parallelism, force), birdIndex);
       }
       default -> {
         System.out.println("Update the indexes. Specify which to update. `alls-indexes, bird-index, sound-index or image-index`");
@@ -240,4 +430,326 @@ class UpdateCommand extends FuglelyderSkraper implements Callable<Integer> {
     // TODO: Create a useful exit code
     return 0;
   }
+
+  private static void reportBirdIndex(final boolean changed) {
+    System.out.println("bird index " + (changed ? "changed" : "unchanged"));
+  }
+
+  private static void reportPages(final String index, final int changed, final List<Bird> birdIndex) {
+    System.out.println(index + " index: " + changed + " of " + birdIndex.size() + " bird pages changed");
+  }
+}
+
+@Command(name = "mirror", description = "Crawl the index pages and download their media at the same time")
+class MirrorCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Parameters(index = "0", defaultValue = "all", description = "sounds, images or all (default: ${DEFAULT-VALUE})")
+  String target;
+
+  @Option(names = "--crawl-parallelism", description = "Number of bird pages fetched concurrently (default: ${DEFAULT-VALUE})")
+  int crawlParallelism = DEFAULT_CRAWL_PARALLELISM;
+
+  @Option(names = "--parallelism", description = "Number of concurrent transfers (default: ${DEFAULT-VALUE})")
+  int parallelism = DownloadEngine.DEFAULT_PARALLELISM;
+
+  @Option(names = "--per-host", description = "Maximum concurrent transfers to a single host (default: ${DEFAULT-VALUE})")
+  int perHost = DownloadEngine.DEFAULT_PER_HOST;
+
+  @Option(names = "--force", description = "Re-parse every page, even those that are unchanged since the last run")
+  boolean force;
+
+  @Mixin
+  RequestOptions requests;
+
+  @Mixin
+  CacheOptions cache;
+
+  @Override
+  public Integer call() throws IOException, InterruptedException, ClassNotFoundException {
+    final boolean sounds = target.equals("sounds") || target.equals("all");
+    final boolean images = target.equals("images") || target.equals("all");
+    if (!sounds && !images) {
+      System.out.println("Mirror `sounds`, `images` or `all`");
+      return 2;
+    }
+    requests.apply();
+    cache.apply();
+    final MirrorReport report = mirror(getBirdIndex(), sounds, images, crawlParallelism, parallelism, perHost, force);
+    System.out.println(report.changed() + " of " + report.pages() + " bird pages changed, " + report.failed() + " failed");
+    final int media = DownloadCommand.printReport(report.media());
+    return report.failed() == 0 ? media : 1;
+  }
+}
+
+@Command(name = "sync", description = "Update the indexes and fetch only the media added or changed since the last sync")
+class SyncCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Parameters(index = "0", defaultValue = "all", description = "sounds, images or all (default: ${DEFAULT-VALUE})")
+  String target;
+
+  @Option(names = "--prune", description = "Delete the media of sounds and images that are gone from the site")
+  boolean prune;
+
+  @Option(names = "--no-update", description = "Sync against the indexes as they are, without fetching them first")
+  boolean noUpdate;
+
+  @Option(names = "--parallelism", description = "Number of concurrent transfers (default: ${DEFAULT-VALUE})")
+  int parallelism = DownloadEngine.DEFAULT_PARALLELISM;
+
+  @Option(names = "--per-host", description = "Maximum concurrent transfers to a single host (default: ${DEFAULT-VALUE})")
+  int perHost = DownloadEngine.DEFAULT_PER_HOST;
+
+  @Mixin
+  RequestOptions requests;
+
+  @Mixin
+  CacheOptions cache;
+
+  @Override
+  public Integer call() throws IOException, InterruptedException, ClassNotFoundException {
+    final boolean sounds = target.equals("sounds") || target.equals("all");
+    final boolean images = target.equals("images") || target.equals("all");
+    if (!sounds && !images) {
+      System.out.println("Sync `sounds`, `images` or `all`");
+      return 2;
+    }
+    requests.apply();
+    cache.apply();
+    final SyncReport report = sync(sounds, images, !noUpdate, prune, parallelism, perHost);
+    final MediaSync.Diff diff = report.diff();
+    System.out.println(diff.added().size() + " added, " + diff.changed().size() + " changed, "
+      + diff.removed().size() + (prune ? " removed (" + report.pruned() + " deleted), " : " removed (kept, --prune deletes them), ")
+      + diff.unchanged() + " unchanged");
+    for (MediaSync.Change change : diff.changed()) {
+      System.out.println("changed " + change.key() + ": " + change.before().save().getFileName()
+        + " -> " + change.after().save().getFileName());
+    }
+    for (MediaSync.Change change : diff.removed()) {
+      System.out.println("removed " + change.key() + ": " + change.before().save().getFileName());
+    }
+    return DownloadCommand.printReport(report.media());
+  }
+}
+
+@Command(name = "merge", description = "Merge the indexes and media of shards crawled and downloaded with --shard into this cache")
+class MergeCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Parameters(arity = "1..*", description = "The directories the shards ran in, or their birds/ directories")
+  List<Path> shards;
+
+  @Override
+  public Integer call() throws IOException {
+    final List<ShardMerge.Report> reports = merge(shards);
+    int conflicts = 0;
+    for (int i = 0; i < reports.size(); i++) {
+      final ShardMerge.Report report = reports.get(i);
+      System.out.println(shards.get(i) + ": " + report.birds() + " birds, " + report.sounds() + " sound and "
+        + report.images() + " image entries added, " + report.copied() + " files (" + report.bytes() + " bytes) copied, "
+        + report.identical() + " identical, " + report.conflicts().size() + " conflicts");
+      for (ShardMerge.Conflict conflict : report.conflicts()) {
+        System.err.println("conflict " + conflict);
+      }
+      conflicts += report.conflicts().size();
+    }
+    if (conflicts > 0) {
+      System.out.println(conflicts + " conflicts, this cache's copy was kept for each");
+    }
+    return conflicts == 0 ? 0 : 1;
+  }
+}
+
+@Command(name = "analyze", description = "Read duration, bitrate and sample rate from the headers of the downloaded sounds")
+class AnalyzeCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Parameters(index = "0", description = "What to analyze, only `sounds` for now")
+  String target;
+
+  @Option(names = "--parallelism", description = "Number of files scanned concurrently (default: ${DEFAULT-VALUE})")
+  int parallelism = DEFAULT_ANALYSIS_PARALLELISM;
+
+  @Option(names = "--force", description = "Scan every file, even those unchanged since they were last analyzed")
+  boolean force;
+
+  @Override
+  public Integer call() throws IOException, ClassNotFoundException {
+    if (!target.equals("sounds")) {
+      System.out.println("Analyze the downloaded `sounds`");
+      return 2;
+    }
+    final AnalysisReport report = analyzeSounds(getSoundIndex(getBirdIndex()), parallelism, force);
+    System.out.println(report.analyzed() + " analyzed, " + report.unchanged() + " unchanged, "
+      + report.missing() + " not downloaded, " + report.failures().size() + " failed");
+    for (String failure : report.failures()) {
+      System.err.println("failed " + failure);
+    }
+    return report.failures().isEmpty() ? 0 : 1;
+  }
+}
+
+@Command(name = "thumbnails", description = "Make resized copies of the downloaded images for the UI")
+class ThumbnailsCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Option(names = "--size", split = ",",
+    description = "Longest side of a derivative in pixels, repeat or separate by commas (default: ${DEFAULT-VALUE})")
+  List<Integer> sizes = DerivativeCache.DEFAULT_SIZES;
+
+  @Option(names = "--parallelism", description = "Number of images resized concurrently (default: ${DEFAULT-VALUE})")
+  int parallelism = Runtime.getRuntime().availableProcessors();
+
+  @Option(names = "--force", description = "Regenerate every derivative, even those that are up to date")
+  boolean force;
+
+  @Override
+  public Integer call() throws IOException, ClassNotFoundException {
+    final DerivativeCache.Report report = generateDerivatives(getImageIndex(getBirdIndex()), sizes, parallelism, force);
+    System.out.println(report.generated() + " generated, " + report.unchanged() + " up to date, "
+      + report.missing() + " not downloaded, " + report.failures().size() + " failed");
+    for (String failure : report.failures()) {
+      System.err.println("failed " + failure);
+    }
+    return report.failures().isEmpty() ? 0 : 1;
+  }
+}
+
+@Command(name = "pack", description = "Move the downloaded media into a few append-only pack files")
+class PackCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Parameters(index = "0", defaultValue = "all", description = "sounds, images or all (default: ${DEFAULT-VALUE})")
+  String target;
+
+  @Override
+  public Integer call() throws IOException {
+    final List<Path> directories = new ArrayList<>();
+    if (target.equals("sounds") || target.equals("all")) {
+      directories.add(SOUND_SAVES);
+    }
+    if (target.equals("images") || target.equals("all")) {
+      directories.add(IMAGE_SAVES);
+    }
+    if (directories.isEmpty()) {
+      System.out.println("Pack `sounds`, `images` or `all`");
+      return 2;
+    }
+    final MediaStore.PackReport report = MediaStore.get().pack(directories);
+    System.out.println(report.packed() + " files (" + report.bytes() + " bytes) packed into " + PACK_SAVES
+      + ", " + report.packs() + " pack files");
+    if (report.unreferenced() > 0) {
+      System.out.println(report.unreferenced() + " bytes in the packs belong to deleted or replaced files;"
+        + " run gc to reclaim them");
+    }
+    return 0;
+  }
+}
+
+@Command(name = "gc", description = "Evict the least recently used media until the cache fits in a size budget")
+class GcCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Option(names = "--max-size", required = true, converter = SizeConverter.class,
+    description = "Size the sounds and images may take together, e.g. 500M or 2G")
+  long maxSize;
+
+  @Override
+  public Integer call() throws IOException {
+    final MediaStore.GcReport report = MediaStore.get().gc(maxSize);
+    System.out.println(report.evicted() + " files evicted (" + report.freed() + " bytes), "
+      + report.reclaimed() + " bytes reclaimed from the packs, " + report.remaining() + " bytes left in the cache");
+    return 0;
+  }
+}
+
+@Command(name = "verify", description = "Hash the cached media and check them against the checksums recorded at download")
+class VerifyCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Parameters(index = "0", defaultValue = "all", description = "sounds, images or all (default: ${DEFAULT-VALUE})")
+  String target;
+
+  @Option(names = "--parallelism", description = "Number of files hashed concurrently (default: ${DEFAULT-VALUE})")
+  int parallelism = Runtime.getRuntime().availableProcessors();
+
+  @Option(names = "--full", description = "Hash every file, even those unchanged since they last matched")
+  boolean full;
+
+  @Option(names = "--repair", description = "Delete the damaged files and download them again")
+  boolean repair;
+
+  @Mixin
+  RequestOptions requests;
+
+  @Override
+  public Integer call() throws IOException, InterruptedException, ClassNotFoundException {
+    final List<Path> directories = new ArrayList<>();
+    if (target.equals("sounds") || target.equals("all")) {
+      directories.add(SOUND_SAVES);
+    }
+    if (target.equals("images") || target.equals("all")) {
+      directories.add(IMAGE_SAVES);
+    }
+    if (directories.isEmpty()) {
+      System.out.println("Verify `sounds`, `images` or `all`");
+      return 2;
+    }
+    final MediaChecksums.Report report = verifyMedia(directories, parallelism, full);
+    System.out.println(report.hashed() + " verified, " + report.unchanged() + " unchanged, " + report.unrecorded()
+      + " without a recorded checksum, " + report.damaged().size() + " damaged, " + report.failures().size() + " failed");
+    for (MediaChecksums.Damage damage : report.damaged()) {
+      System.err.println("damaged " + damage);
+    }
+    for (String failure : report.failures()) {
+      System.err.println("failed " + failure);
+    }
+    if (!repair || report.damaged().isEmpty()) {
+      return report.damaged().isEmpty() && report.failures().isEmpty() ? 0 : 1;
+    }
+    requests.apply();
+    final RepairReport repaired = repairMedia(report.damaged().stream().map(MediaChecksums.Damage::file).toList());
+    for (Path file : repaired.unknown()) {
+      System.err.println("cannot repair " + file + ", the catalog no longer lists it");
+    }
+    final int failed = DownloadCommand.printReport(repaired.media());
+    return failed == 0 && repaired.unknown().isEmpty() && report.failures().isEmpty() ? 0 : 1;
+  }
+}
+
+@Command(name = "unpack", description = "Write the packed media back out as one file each")
+class UnpackCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Override
+  public Integer call() throws IOException {
+    System.out.println(MediaStore.get().unpack() + " files unpacked");
+    return 0;
+  }
+}
+
+@Command(name = "search", description = "Find birds by name or slug, forgiving case, accents and typos")
+class SearchCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Parameters(arity = "1..*", description = "Words to look for")
+  String[] query;
+
+  @Option(names = "--limit", description = "Most birds to show (default: ${DEFAULT-VALUE})")
+  int limit = 10;
+
+  @Override
+  public Integer call() throws IOException, ClassNotFoundException {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be at least 1");
+    }
+    final List<SearchIndex.Hit> hits = getSearchIndex().search(String.join(" ", query), limit);
+    for (SearchIndex.Hit hit : hits) {
+      System.out.println(hit.bird() + "\t" + hit.bird().getName());
+    }
+    return hits.isEmpty() ? 1 : 0;
+  }
+}
+
+@Command(name = "serve", description = "Keep the catalog in memory and answer lookups and media requests over HTTP")
+class ServeCommand extends FuglelyderSkraper implements Callable<Integer> {
+  @Option(names = "--bind", description = "Address to listen on (default: ${DEFAULT-VALUE})")
+  String bind = "127.0.0.1";
+
+  @Option(names = "--port", description = "Port to listen on (default: ${DEFAULT-VALUE})")
+  int port = 8321;
+
+  @Option(names = "--threads", description = "Number of request threads (default: ${DEFAULT-VALUE})")
+  int threads = 8;
+
+  @Override
+  public Integer call() throws IOException, InterruptedException {
+    final CatalogServer server = new CatalogServer(new InetSocketAddress(bind, port), threads);
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    System.out.println("serving the bird cache on http://" + bind + ":" + server.address().getPort() + "/birds");
+    new CountDownLatch(1).await();
+    return 0;
+  }
 }
@@ -3,87 +3,254 @@ package no.andreas.fugler;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.jsoup.HttpStatusException;
 
 public class FuglelyderSkraper {
-    protected static final String WEBSITE = "https://www.fuglelyder.net/";
+    protected static final String DEFAULT_WEBSITE = "https://www.fuglelyder.net/";
+    protected static final Path CATALOG_SAVE = Path.of("birds", "catalog.bin");
+    protected static final Path VALIDATORS_SAVE = Path.of("birds", "validators.bin");
+    protected static final Path SEARCH_SAVE = Path.of("birds", "search.bin");
+    // Per file indexes written before the catalog, only read to migrate them
     protected static final Path BIRD_INDEX_SAVE = Path.of("birds", "birdIndex.ser");
     protected static final Path SOUND_INDEX_SAVE = Path.of("birds", "soundIndex");
     protected static final Path IMAGE_INDEX_SAVE = Path.of("birds", "imageIndex");
     protected static final Path SOUND_SAVES = Path.of("birds", "sounds");
     protected static final Path IMAGE_SAVES = Path.of("birds", "images");
+    protected static final Path DERIVATIVE_SAVES = Path.of("birds", "derivatives");
+    protected static final Path PACK_SAVES = Path.of("birds", "packs");
+    protected static final Path CHECKSUM_SAVE = Path.of("birds", "checksums.bin");
+    protected static final Path SYNC_SAVE = Path.of("birds", "sync.bin");
+    protected static final int DEFAULT_CRAWL_PARALLELISM = 8;
+    protected static final int DEFAULT_ANALYSIS_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static volatile String website = DEFAULT_WEBSITE;
+
+    // The site every page and media URL is resolved against, ending in a slash
+    static String website() {
+      return website;
+    }
+
+    // Crawl and download from another copy of the site, such as a local stub; only meant to be called before the first request
+    static void setWebsite(final String url) {
+      final URI uri = URI.create(url);
+      if (!("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) || uri.getHost() == null) {
+        throw new IllegalArgumentException("the base URL must be an absolute http or https URL, not " + url);
+      }
+      website = url.endsWith("/") ? url : url + "/";
+    }
 
     // API
     
     public static List<Bird> getBirdIndex() throws IOException, ClassNotFoundException {
       // Ready a birdIndex
-      final List<Bird> birdIndex;
-      if (Files.exists(BIRD_INDEX_SAVE)) {
-        birdIndex = readBirdIndex(BIRD_INDEX_SAVE);
-      } else {
-        birdIndex = new ArrayList<>();
-        downloadBirdIndex();
-        birdIndex.addAll(readBirdIndex(BIRD_INDEX_SAVE));
-        writeBirdIndex(BIRD_INDEX_SAVE, birdIndex);
-      }
-      return birdIndex;
+      return Catalog.get().birds();
     }
     
-    public static HashMap<Bird, List<BirdSound>> getSoundIndex(final List<Bird> birdIndex) throws IOException, ClassNotFoundException {
+    public static Map<Bird, List<BirdSound>> getSoundIndex(final List<Bird> birdIndex) throws IOException, ClassNotFoundException {
       // Ready a soundIndex
-      final HashMap<Bird, List<BirdSound>> soundIndex;
-      if (Files.exists(SOUND_INDEX_SAVE)) {
-        soundIndex = readSoundIndex(birdIndex, SOUND_INDEX_SAVE);
-      } else {
-        Files.createDirectories(SOUND_INDEX_SAVE);
-        downloadSoundIndex(Objects.requireNonNull(birdIndex));
-        soundIndex = readSoundIndex(birdIndex, BIRD_INDEX_SAVE);
-        for (Bird bird : birdIndex) {
-          Path soundsSave = SOUND_INDEX_SAVE.resolve(bird + ".ser");
-          writeIndexSounds(soundsSave, soundIndex.get(bird));
+      return getSoundCatalog().soundIndex(Objects.requireNonNull(birdIndex));
+    }
+      
+    public static Map<Bird, List<BirdImage>> getImageIndex(final List<Bird> birdIndex) throws IOException, ClassNotFoundException {
+      // Ready an imageIndex
+      return getImageCatalog().imageIndex(Objects.requireNonNull(birdIndex));
+    }
+
+    // The name and slug search index, brought up to date with the catalog first
+    static SearchIndex getSearchIndex() throws IOException, ClassNotFoundException {
+      return SearchIndex.update(SEARCH_SAVE, Catalog.get().birds());
+    }
+
+    // The loaded catalog, crawling the sound pages first if no bird has been indexed yet
+    static Catalog getSoundCatalog() throws IOException, ClassNotFoundException {
+      final Catalog catalog = Catalog.get();
+      if (catalog.hasSounds()) {
+        return catalog;
+      }
+      downloadSoundIndex(catalog.birds());
+      return Catalog.get();
+    }
+
+    // The loaded catalog, crawling the gallery pages first if no bird has been indexed yet
+    static Catalog getImageCatalog() throws IOException, ClassNotFoundException {
+      final Catalog catalog = Catalog.get();
+      if (catalog.hasImages()) {
+        return catalog;
+      }
+      downloadImageIndex(catalog.birds());
+      return Catalog.get();
+    }
+
+    // The catalog, migrated from the old per-file indexes when needed, or null when nothing is indexed yet.
+    // The catalog is only ever replaced by a rename, so the mapping stays whole after the lock is let go.
+    @SuppressWarnings("try")
+    static CatalogFile openCatalog() throws IOException {
+      try {
+        migrateLegacyIndexes();
+      } catch (ClassNotFoundException e) {
+        throw new IOException("legacy index could not be migrated", e);
+      }
+      try (CacheLock.Held held = CacheLock.of(CATALOG_SAVE).shared()) {
+        return Files.exists(CATALOG_SAVE) ? CatalogFile.open(CATALOG_SAVE) : null;
+      }
+    }
+
+    // Read, change and atomically replace the catalog. Serialized, across fugl processes too, so concurrent
+    // crawls do not lose each other's entries.
+    @SuppressWarnings("try")
+    static synchronized void updateCatalog(final UnaryOperator<CatalogFile.Contents> change) throws IOException {
+      try (CacheLock.Held held = CacheLock.of(CATALOG_SAVE).exclusive()) {
+        final CatalogFile catalog = openCatalog();
+        final CatalogFile.Contents current = catalog == null ? CatalogFile.Contents.empty() : catalog.contents();
+        CatalogFile.write(CATALOG_SAVE, change.apply(current));
+      }
+      Catalog.invalidate();
+    }
+
+    // Ids of the birds that already have an entry in the given catalog section
+    private static Set<Integer> indexedBirds(final BiPredicate<CatalogFile, Integer> section) throws IOException {
+      final Set<Integer> indexed = new HashSet<>();
+      final CatalogFile catalog = openCatalog();
+      if (catalog != null) {
+        for (int row = 0; row < catalog.birdCount(); row++) {
+          if (section.test(catalog, row)) {
+            indexed.add(catalog.bird(row).getId());
+          }
         }
       }
-      return soundIndex;
+      return indexed;
     }
-      
-    public static HashMap<Bird, List<BirdImage>> getImageIndex(final List<Bird> birdIndex) throws IOException, ClassNotFoundException {
-      // Ready a soundIndex
-      final HashMap<Bird, List<BirdImage>> imageIndex;
-      if (Files.exists(IMAGE_INDEX_SAVE)) {
-        imageIndex = readImageIndex(birdIndex, IMAGE_INDEX_SAVE);
-      } else {
-        Files.createDirectories(IMAGE_INDEX_SAVE);
-        downloadSoundIndex(Objects.requireNonNull(birdIndex));
-        imageIndex = readImageIndex(birdIndex, BIRD_INDEX_SAVE);
-        for (Bird bird : birdIndex) {
-          Path imagesSave = IMAGE_INDEX_SAVE.resolve(bird + ".ser");
-          writeIndexImages(imagesSave, imageIndex.get(bird));
+
+    // Fetch a page. When conditional is set and the page is known, the stored validators are sent
+    // along and the page is empty if the server answers 304 or the body hashes the same as last time.
+    // The new validator is left to the caller to store once the page's entries are in the catalog.
+    static PageFetch fetchPage(final String url, final PageValidators validators, final boolean conditional)
+    throws IOException {
+      final PageValidators.Validator known = conditional ? validators.get(url) : null;
+      final Fetched fetched = RequestScheduler.get().send(Metrics.PAGE, () -> {
+        final HttpRequest.Builder request = Transport.get().request(URI.create(url));
+        if (known != null && known.etag() != null) {
+          request.header("If-None-Match", known.etag());
+        }
+        if (known != null && known.lastModified() != null) {
+          request.header("If-Modified-Since", known.lastModified());
+        }
+        final long start = System.nanoTime();
+        return new Fetched(Transport.get().page(request), start);
+      }, attempt -> attempt.response().status(), attempt -> attempt.response().header("Retry-After"));
+      final Transport.Response response = fetched.response();
+      final byte[] body = response.body();
+      final long elapsed = System.nanoTime() - fetched.start();
+      if (response.status() == 304 && known != null) {
+        Metrics.get().request(Metrics.PAGE, elapsed, 0, Metrics.Outcome.NOT_MODIFIED);
+        return new PageFetch(url, Optional.empty(), null);
+      }
+      if (response.status() / 100 != 2) {
+        Metrics.get().request(Metrics.PAGE, elapsed, 0, Metrics.Outcome.FAILED);
+        throw new HttpStatusException("HTTP error fetching URL", response.status(), url);
+      }
+      final String hash = PageValidators.hash(body);
+      final PageValidators.Validator validator =
+        new PageValidators.Validator(response.header("ETag"), response.header("Last-Modified"), hash);
+      if (known != null && hash.equals(known.hash())) {
+        Metrics.get().request(Metrics.PAGE, elapsed, response.received(), Metrics.Outcome.NOT_MODIFIED);
+        return new PageFetch(url, Optional.empty(), validator);
+      }
+      Metrics.get().request(Metrics.PAGE, elapsed, response.received(), Metrics.Outcome.OK);
+      return new PageFetch(url, Optional.of(new PageExtractor.Page(url, body, response.charset())), validator);
+    }
+
+    private record Fetched(Transport.Response response, long start) {}
+
+    // A fetched page, empty when unchanged, and the validator to store for it. The validator is null
+    // when the server answered 304 and the stored one still holds.
+    record PageFetch(String url, Optional<PageExtractor.Page> page, PageValidators.Validator validator) {
+      void storeIn(final PageValidators validators) {
+        if (validator != null) {
+          validators.put(url, validator);
         }
       }
-      return imageIndex;
     }
-    
+
+    // Convert birdIndex.ser and the per bird .ser files into the catalog, then remove them
+    @SuppressWarnings("try")
+    static synchronized void migrateLegacyIndexes() throws IOException, ClassNotFoundException {
+      if (Files.exists(CATALOG_SAVE) || !Files.exists(BIRD_INDEX_SAVE)) {
+        return;
+      }
+      try (CacheLock.Held held = CacheLock.of(CATALOG_SAVE).exclusive()) {
+        // Another process may have migrated them while this one waited
+        if (!Files.exists(CATALOG_SAVE) && Files.exists(BIRD_INDEX_SAVE)) {
+          migrateLegacyIndexes(readBirdIndex(BIRD_INDEX_SAVE));
+        }
+      }
+    }
+
+    private static void migrateLegacyIndexes(final List<Bird> birds) throws IOException, ClassNotFoundException {
+      final Map<Bird, List<BirdSound>> sounds = new HashMap<>();
+      final Map<Bird, List<BirdImage>> images = new HashMap<>();
+      for (Bird bird : birds) {
+        final Path soundsSave = SOUND_INDEX_SAVE.resolve(bird + ".ser");
+        if (Files.exists(soundsSave)) {
+          sounds.put(bird, readSoundIndexEntry(soundsSave));
+        }
+        final Path imagesSave = IMAGE_INDEX_SAVE.resolve(bird + ".ser");
+        if (Files.exists(imagesSave)) {
+          images.put(bird, readImageIndexEntry(imagesSave));
+        }
+      }
+      CatalogFile.write(CATALOG_SAVE, new CatalogFile.Contents(birds, sounds, images));
+      deleteTree(SOUND_INDEX_SAVE);
+      deleteTree(IMAGE_INDEX_SAVE);
+      Files.deleteIfExists(BIRD_INDEX_SAVE);
+      System.err.println("migrated " + birds.size() + " birds from the old index files to " + CATALOG_SAVE);
+    }
+
+    static void deleteTree(final Path root) throws IOException {
+      if (!Files.exists(root)) {
+        return;
+      }
+      try (Stream<Path> files = Files.walk(root)) {
+        for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+
     public static List<Bird> readBirdIndex(final Path birdIndexSave) throws IOException, ClassNotFoundException {
       final List<Bird> birdIndex = new ArrayList<>();
       try (
@@ -107,20 +274,18 @@ public class FuglelyderSkraper {
       return null;
     }
    
-    public static HashMap<Bird, List<BirdSound>> readSoundIndex(final List<Bird> birdIndex, 
-    final Path birdSoundIndexSave) throws IOException, ClassNotFoundException {
-      // TODO: Create sibling method with different parameter signature by the save instead of both the index and save
-      // try (DirectoryStream<Path> stream = Files.newDirectoryStream(birdSoundIndexSave)) {
-      //   for (Path entry: stream) {
-      //       ...
-      //   }
-      // }
-      HashMap<Bird, List<BirdSound>> birdSoundIndex = new HashMap<>();
+    public static Map<Bird, List<BirdSound>> readSoundIndex(final List<Bird> birdIndex, 
+    final Path catalogSave) throws IOException {
+      // Birds whose sound page has not been indexed are left out, entries are decoded on access
+      final CatalogFile catalog = CatalogFile.open(catalogSave);
+      final List<Bird> indexed = new ArrayList<>();
       for (Bird bird : birdIndex) {
-        Path soundsSave = birdSoundIndexSave.resolve(bird + ".ser");
-        birdSoundIndex.put(bird, readSoundIndexEntry(soundsSave));
+        final int row = catalog.rowOf(bird.getId());
+        if (row >= 0 && catalog.hasSounds(row)) {
+          indexed.add(bird);
+        }
       }
-      return birdSoundIndex;
+      return new BirdIndexView<>(indexed, bird -> catalog.sounds(catalog.rowOf(bird.getId())));
     }
    
     public static List<BirdSound> readSoundIndexEntry(final Path soundsSave) throws IOException, ClassNotFoundException {
@@ -148,20 +313,18 @@ public class FuglelyderSkraper {
       return null;
     }
   
-    public static HashMap<Bird, List<BirdImage>> readImageIndex(final List<Bird> birdIndex, 
-    final Path birdSoundIndexSave) throws IOException, ClassNotFoundException {
-      // TODO: Create sibling method with different parameter signature by the save instead of both the index and save
-      // try (DirectoryStream<Path> stream = Files.newDirectoryStream(birdSoundIndexSave)) {
-      //   for (Path entry: stream) {
-      //       ...
-      //   }
-      // }
-      HashMap<Bird, List<BirdImage>> birdImageIndex = new HashMap<>();
+    public static Map<Bird, List<BirdImage>> readImageIndex(final List<Bird> birdIndex, 
+    final Path catalogSave) throws IOException {
+      // Birds whose gallery page has not been indexed are left out, entries are decoded on access
+      final CatalogFile catalog = CatalogFile.open(catalogSave);
+      final List<Bird> indexed = new ArrayList<>();
       for (Bird bird : birdIndex) {
-        Path imagesSave = birdSoundIndexSave.resolve(bird + ".ser");
-        birdImageIndex.put(bird, readImageIndexEntry(imagesSave));
+        final int row = catalog.rowOf(bird.getId());
+        if (row >= 0 && catalog.hasImages(row)) {
+          indexed.add(bird);
+        }
       }
-      return birdImageIndex;
+      return new BirdIndexView<>(indexed, bird -> catalog.images(catalog.rowOf(bird.getId())));
     }
    
     public static List<BirdImage> readImageIndexEntry(final Path imagesSave) throws IOException, ClassNotFoundException {
@@ -189,165 +352,689 @@ public class FuglelyderSkraper {
       return null;
     }
     
-    public static void downloadBirdIndex() throws IOException {
-      String reqString = WEBSITE + "alfabetisk/";
-      List<Bird> birds = new ArrayList<>();
-      Document doc = Jsoup.connect(reqString).get();
-      Elements birdElements = doc.select(".bird-outer");
-      Pattern birdSlugPattern = Pattern.compile("birdmedia\\/(\\d+)\\/.+");
-      for (Element bird : birdElements) {
-        final Integer id;
-        final String slug;
-        final String name;
-        final Optional<Element> img = bird.getElementsByTag("img").stream().findFirst();
-        if (img.isPresent()) {
-          final Element birdImg = img.get();
-          Matcher idSearch = birdSlugPattern.matcher(birdImg.attr("src").strip());
-          idSearch.matches();
-          id = Integer.valueOf(idSearch.group(1)); 
-          name = birdImg.attr("alt");
-        } else {
-          System.err.println("image element could not be found");
-          id = null;
-          name = null;
-        }
-        final Optional<Element> birdLink = bird.getElementsByTag("a").stream().findFirst();
-        if (birdLink.isPresent()) {
-          final Element link = birdLink.get();
-          slug = link.attr("href").replace("/", "");
-        } else {
-          System.err.print("link element (a) could not be found");
-          slug = null;
+    public static boolean downloadBirdIndex() throws IOException {
+      return downloadBirdIndex(false);
+    }
+
+    // Scrape the alphabetical bird list. Returns false when the page is unchanged since the last scrape.
+    public static boolean downloadBirdIndex(final boolean force) throws IOException {
+      String reqString = website() + "alfabetisk/";
+      final PageValidators validators = PageValidators.load(VALIDATORS_SAVE);
+      try (Metrics.Phase phase = Metrics.get().phase("bird_index", Metrics.PAGE, 1)) {
+        final PageFetch fetch = fetchPage(reqString, validators, !force && Files.exists(CATALOG_SAVE));
+        phase.advance();
+        if (fetch.page().isEmpty()) {
+          return false;
         }
-        // TODO: Review if should have this behaviour. Adds a bird with all null parameters if elements could not be found.
-        birds.add(new Bird(id, slug, name));
+        final List<Bird> birds = PageExtractor.birds(fetch.page().get());
+        updateCatalog(contents -> contents.withBirds(birds));
+        SearchIndex.update(SEARCH_SAVE, birds);
+        fetch.storeIn(validators);
+        validators.save(VALIDATORS_SAVE);
+        return true;
       }
-      writeBirdIndex(BIRD_INDEX_SAVE, birds);
     }
-    
-    public static void downloadSoundIndex(List<Bird> birdIndex) throws IOException {
-      for (Bird bird : birdIndex) {
-        downloadSoundIndexEntry(bird);
+
+    public static int downloadSoundIndex(List<Bird> birdIndex) throws IOException {
+      return downloadSoundIndex(birdIndex, DEFAULT_CRAWL_PARALLELISM, false);
+    }
+
+    // Refresh the sound entries of the given birds. Pages that are unchanged since the last crawl are
+    // not parsed or rewritten unless force is set. Returns the number of pages that changed.
+    public static int downloadSoundIndex(List<Bird> birdIndex, int parallelism, boolean force) throws IOException {
+      final PageValidators validators = PageValidators.load(VALIDATORS_SAVE);
+      final Set<Integer> indexed = force ? Set.of() : indexedBirds(CatalogFile::hasSounds);
+      // Validators of the pages parsed, stored once their entries are
+      final PageValidators parsed = new PageValidators();
+      final List<Optional<List<BirdSound>>> pages = crawl("sound_index", birdIndex, parallelism,
+        bird -> {
+          final PageFetch fetch =
+            fetchPage(website() + bird.getSlug(), validators, bird.getId() != null && indexed.contains(bird.getId()));
+          final Optional<List<BirdSound>> sounds =
+            fetch.page().isEmpty() ? Optional.empty() : Optional.of(PageExtractor.sounds(fetch.page().get()));
+          fetch.storeIn(parsed);
+          return sounds;
+        });
+      final int changed = changedPages(pages);
+      if (changed > 0) {
+        updateCatalog(contents -> {
+          final Map<Bird, List<BirdSound>> sounds = new HashMap<>(contents.sounds());
+          putPages(contents.birds(), birdIndex, pages, sounds);
+          return contents.withSounds(sounds);
+        });
       }
+      validators.putAll(parsed);
+      validators.save(VALIDATORS_SAVE);
+      requireAllPages(pages);
+      return changed;
     }
   
-    public static void downloadSoundIndexEntry(Bird bird) throws IOException {
-      Files.createDirectories(SOUND_INDEX_SAVE);
-      String birdLink = WEBSITE + bird.getSlug();
-      Document birdDoc = Jsoup.connect(birdLink).get();
-      Path soundsSave = SOUND_INDEX_SAVE.resolve(bird + ".ser");
-      writeIndexSounds(soundsSave, Objects.requireNonNull(birdDoc.getElementById("birdmedia"))
-        .getElementsByClass("allsounds").first()
-        .getElementsByTag("span").stream()
-        .filter(tab -> !tab.hasClass("heartspan"))
-        .filter(tab -> !tab.id().equalsIgnoreCase("soundshop"))
-        .map(tab -> new BirdSound(Integer.valueOf(
-            tab.id().replace("sound", "")),
-          tab.text().replace(" / ", "-")))
-        .toList());
+    public static List<BirdSound> downloadSoundIndexEntry(Bird bird) throws IOException {
+      final String birdLink = website() + bird.getSlug();
+      return PageExtractor.sounds(fetchPage(birdLink, new PageValidators(), false).page().orElseThrow());
     }
     
-    public static void downloadAllSounds(final HashMap<Bird, List<BirdSound>> soundIndex)
+    public static DownloadEngine.Report downloadAllSounds(final Map<Bird, List<BirdSound>> soundIndex)
     throws IOException, InterruptedException {
+      return downloadAllSounds(soundIndex, DownloadEngine.DEFAULT_PARALLELISM, DownloadEngine.DEFAULT_PER_HOST);
+    }
+
+    public static DownloadEngine.Report downloadAllSounds(final Map<Bird, List<BirdSound>> soundIndex,
+    final int parallelism, final int perHostLimit) throws IOException, InterruptedException {
       // Download bird sounds
       Files.createDirectories(SOUND_SAVES);
-      HttpClient birdSoundClient = HttpClient.newHttpClient();
-      for (Bird bird : soundIndex.keySet()) {
-        List<BirdSound> sounds = soundIndex.get(bird);
-        for (BirdSound sound : sounds) {
-          // TODO: Make the download request concurrent
-          Path birdSoundSave = SOUND_SAVES.resolve(bird.getSlug() + sound + ".mp3");
-          if (!Files.exists(birdSoundSave)) {
+      final int total = soundIndex.values().stream().mapToInt(List::size).sum();
+      try (Metrics.Phase phase = Metrics.get().phase("sound_media", Metrics.MEDIA, total)) {
+        final DownloadEngine engine = new DownloadEngine(Transport.get(), parallelism, perHostLimit, phase);
+        for (Bird bird : soundIndex.keySet()) {
+          List<BirdSound> sounds = soundIndex.get(bird);
+          for (BirdSound sound : sounds) {
+            Path birdSoundSave = soundSave(bird, sound);
             try {
-              String birdSoundURI = WEBSITE + "birdmedia/" + bird.getId() + "/" + sound.getId() + ".mp3";
-              System.out.println(birdSoundURI);
-              HttpRequest birdSoundReq = HttpRequest.newBuilder(new URI(birdSoundURI)).build();
-              birdSoundClient.send(birdSoundReq, HttpResponse.BodyHandlers.ofFile(birdSoundSave));
-            } catch (URISyntaxException e) {
+              engine.submit(new DownloadEngine.Task(soundUri(bird, sound), birdSoundSave));
+            } catch (IllegalArgumentException e) {
               System.err.println("was unable to download sounds due to the uri being wrong");
+              phase.advance();
             }
           }
         }
+        return engine.finish();
       }
     }
      
-    public static void downloadImageIndex(List<Bird> birdIndex) throws IOException, ClassNotFoundException {
-      Files.createDirectories(IMAGE_INDEX_SAVE);
-      for (Bird bird : birdIndex) {
-        downloadImageIndexEntry(bird);
+    public record AnalysisReport(int analyzed, int unchanged, int missing, List<String> failures) {}
+
+    private record SoundFile(Bird bird, BirdSound sound, Path file, long size, long modified) {}
+
+    // Read duration, bitrate and sample rate from the frame headers of every downloaded sound, loose or
+    // packed, scanning files in parallel. Files whose size and modification time still match their stored analysis are
+    // not read again unless force is set. The results go into the catalog in a single update.
+    public static AnalysisReport analyzeSounds(final Map<Bird, List<BirdSound>> soundIndex, final int parallelism,
+    final boolean force) throws IOException {
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("parallelism must be at least 1");
+      }
+      final MediaStore store = MediaStore.get();
+      final List<SoundFile> pending = new ArrayList<>();
+      int unchanged = 0;
+      int missing = 0;
+      for (Bird bird : soundIndex.keySet()) {
+        for (BirdSound sound : soundIndex.get(bird)) {
+          final Path file = soundSave(bird, sound);
+          final MediaStore.Location location = store.locate(file);
+          if (location == null) {
+            missing++;
+            continue;
+          }
+          final long size = location.length();
+          final long modified = location.modified();
+          if (!force && sound.isAnalyzed() && sound.getSize() == size && sound.getModified() == modified) {
+            unchanged++;
+          } else {
+            pending.add(new SoundFile(bird, sound, file, size, modified));
+          }
+        }
       }
-    }   
+      final Map<Path, BirdSound> analyzed = new ConcurrentHashMap<>();
+      final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+      final ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+      try (Metrics.Phase phase = Metrics.get().phase("sound_analysis", Metrics.MEDIA, pending.size())) {
+        final List<Future<?>> scans = new ArrayList<>(pending.size());
+        for (SoundFile sound : pending) {
+          scans.add(pool.submit(() -> {
+            try {
+              final Mp3Scanner.Result result = Mp3Scanner.scan(store.map(sound.file()));
+              final BirdSound entry = new BirdSound(sound.sound().getId(), sound.sound().getSlug());
+              entry.setAnalysis(result.durationMillis(), result.bitrate(), result.sampleRate(), sound.size(), sound.modified());
+              analyzed.put(sound.file(), entry);
+            } catch (IOException | RuntimeException e) {
+              failures.add(sound.file() + ": " + e.getMessage());
+            } finally {
+              phase.advance();
+            }
+          }));
+        }
+        for (Future<?> scan : scans) {
+          scan.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("sound analysis was interrupted");
+      } catch (ExecutionException e) {
+        throw new IOException("sound analysis failed", e.getCause());
+      } finally {
+        pool.shutdownNow();
+      }
+      if (!analyzed.isEmpty()) {
+        updateCatalog(contents -> {
+          final Map<Bird, List<BirdSound>> sounds = new HashMap<>(contents.sounds());
+          for (Map.Entry<Bird, List<BirdSound>> entry : sounds.entrySet()) {
+            final List<BirdSound> updated = new ArrayList<>(entry.getValue());
+            updated.replaceAll(sound -> analyzed.getOrDefault(soundSave(entry.getKey(), sound), sound));
+            entry.setValue(updated);
+          }
+          return contents.withSounds(sounds);
+        });
+      }
+      return new AnalysisReport(analyzed.size(), unchanged, missing, List.copyOf(failures));
+    }
+
+    public static int downloadImageIndex(List<Bird> birdIndex) throws IOException {
+      return downloadImageIndex(birdIndex, DEFAULT_CRAWL_PARALLELISM, false);
+    }
+
+    // Refresh the image entries of the given birds, see downloadSoundIndex
+    public static int downloadImageIndex(List<Bird> birdIndex, int parallelism, boolean force) throws IOException {
+      final PageValidators validators = PageValidators.load(VALIDATORS_SAVE);
+      final Set<Integer> indexed = force ? Set.of() : indexedBirds(CatalogFile::hasImages);
+      final PageValidators parsed = new PageValidators();
+      final List<Optional<List<BirdImage>>> pages = crawl("image_index", birdIndex, parallelism,
+        bird -> {
+          final PageFetch fetch = fetchPage(website() + "fuglgallery.asp?ID=" + bird.getId(), validators,
+            bird.getId() != null && indexed.contains(bird.getId()));
+          final Optional<List<BirdImage>> images =
+            fetch.page().isEmpty() ? Optional.empty() : Optional.of(PageExtractor.images(bird, fetch.page().get()));
+          fetch.storeIn(parsed);
+          return images;
+        });
+      final int changed = changedPages(pages);
+      if (changed > 0) {
+        updateCatalog(contents -> {
+          final Map<Bird, List<BirdImage>> images = new HashMap<>(contents.images());
+          putPages(contents.birds(), birdIndex, pages, images);
+          return contents.withImages(images);
+        });
+      }
+      validators.putAll(parsed);
+      validators.save(VALIDATORS_SAVE);
+      requireAllPages(pages);
+      return changed;
+    }
+
+    public record SyncReport(MediaSync.Diff diff, DownloadEngine.Report media, int pruned) {}
+
+    // Bring the media in line with the catalog by its difference from the last sync: added and changed
+    // items are downloaded, and removed ones deleted when prune is set, otherwise only reported. Items that
+    // fail stay as they were in the sync state, so the next sync tries them again.
+    public static SyncReport sync(final boolean sounds, final boolean images, final boolean update, final boolean prune,
+    final int parallelism, final int perHostLimit) throws IOException, InterruptedException, ClassNotFoundException {
+      if (update) {
+        downloadBirdIndex(false);
+      }
+      final List<Bird> birdIndex = getBirdIndex();
+      final Map<String, MediaSync.Item> current = new TreeMap<>();
+      if (sounds) {
+        if (update) {
+          downloadSoundIndex(birdIndex, DEFAULT_CRAWL_PARALLELISM, false);
+        }
+        current.putAll(MediaSync.sounds(getSoundIndex(birdIndex)));
+      }
+      if (images) {
+        if (update) {
+          downloadImageIndex(birdIndex, DEFAULT_CRAWL_PARALLELISM, false);
+        }
+        current.putAll(MediaSync.images(getImageIndex(birdIndex)));
+      }
+      // The kind that is not synced keeps its state for a later sync
+      final Predicate<String> kinds = key -> sounds && key.startsWith("sound ") || images && key.startsWith("image ");
+      final Map<String, MediaSync.Item> previous = new TreeMap<>();
+      MediaSync.load(SYNC_SAVE).forEach((key, item) -> {
+        if (kinds.test(key)) {
+          previous.put(key, item);
+        }
+      });
+      final Map<String, MediaSync.Item> synced = new TreeMap<>();
+      final MediaSync.Diff diff = MediaSync.diff(previous, current);
+
+      final MediaStore store = MediaStore.get();
+      final List<MediaSync.Change> fetch = new ArrayList<>(diff.added());
+      fetch.addAll(diff.changed());
+      Files.createDirectories(SOUND_SAVES);
+      Files.createDirectories(IMAGE_SAVES);
+      final DownloadEngine.Report media;
+      try (Metrics.Phase phase = Metrics.get().phase("sync_media", Metrics.MEDIA, fetch.size())) {
+        final DownloadEngine engine = new DownloadEngine(Transport.get(), parallelism, perHostLimit, phase);
+        for (MediaSync.Change change : fetch) {
+          // A file kept at the same path would be skipped as already cached. It is fetched anyway and the new
+          // copy renamed over it, so the old one stays readable until then and stays if the fetch fails.
+          final boolean replace = change.before() != null && change.before().save().equals(change.after().save());
+          engine.submit(new DownloadEngine.Task(change.after().uri(), change.after().save(), replace));
+        }
+        media = engine.finish();
+      }
+      final Set<Path> failed = new HashSet<>();
+      media.failures().forEach(failure -> failed.add(failure.task().save()));
+      // Another process is downloading these, the next sync checks that they arrived
+      media.claimed().forEach(task -> failed.add(task.save()));
+
+      current.forEach((key, item) -> {
+        if (!failed.contains(item.save())) {
+          synced.put(key, item);
+        }
+      });
+      for (MediaSync.Change change : diff.changed()) {
+        if (failed.contains(change.after().save())) {
+          synced.put(change.key(), change.before());
+        } else if (!change.before().save().equals(change.after().save())) {
+          deleteClaimed(store, change.before().save());
+        }
+      }
+      int pruned = 0;
+      for (MediaSync.Change change : diff.removed()) {
+        if (prune) {
+          pruned += deleteClaimed(store, change.before().save()) ? 1 : 0;
+        } else {
+          synced.put(change.key(), change.before());
+        }
+      }
+      MediaChecksums.get().save();
+      MediaSync.save(SYNC_SAVE, synced, kinds);
+      return new SyncReport(diff, media, pruned);
+    }
+
+    // Delete a file no longer in the catalog, unless another process has it claimed for a download
+    private static boolean deleteClaimed(final MediaStore store, final Path save) throws IOException {
+      try (CacheLock.Held claim = CacheLock.of(save.getParent()).claim(save.getFileName().toString())) {
+        return claim != null && store.delete(save);
+      }
+    }
+
+    // Merge the caches of shards into this one, one shard at a time: catalog, page validators, then media.
+    // Conflicts are reported per shard and leave this cache's copy in place.
+    @SuppressWarnings("try")
+    static List<ShardMerge.Report> merge(final List<Path> shards) throws IOException {
+      final List<ShardMerge.Report> reports = new ArrayList<>();
+      try (Metrics.Phase phase = Metrics.get().phase("merge_media", Metrics.MEDIA, 0)) {
+        for (Path shard : shards) {
+          final Path root = ShardMerge.root(shard);
+          final Path catalog = root.resolve(CATALOG_SAVE.getFileName());
+          if (!Files.exists(catalog)) {
+            throw new NoSuchFileException(catalog.toString(), null, "not a shard, it has no catalog");
+          }
+          final CatalogFile.Contents theirs;
+          try (CacheLock.Held held = CacheLock.of(catalog).shared()) {
+            theirs = CatalogFile.open(catalog).contents();
+          }
+          final AtomicReference<ShardMerge.Report> merged = new AtomicReference<>();
+          updateCatalog(contents -> {
+            final ShardMerge.Merged catalogMerge = ShardMerge.catalog(shard, contents, theirs);
+            merged.set(catalogMerge.report());
+            return catalogMerge.contents();
+          });
+
+          final PageValidators validators = PageValidators.load(VALIDATORS_SAVE);
+          if (validators.putAbsent(PageValidators.load(root.resolve(VALIDATORS_SAVE.getFileName()))) > 0) {
+            validators.save(VALIDATORS_SAVE);
+          }
+
+          final ShardMerge.Report entries = merged.get();
+          final ShardMerge.Report media = ShardMerge.media(shard, List.of(SOUND_SAVES, IMAGE_SAVES), phase);
+          final List<ShardMerge.Conflict> conflicts = new ArrayList<>(entries.conflicts());
+          conflicts.addAll(media.conflicts());
+          reports.add(new ShardMerge.Report(entries.birds(), entries.sounds(), entries.images(), media.copied(),
+            media.bytes(), media.identical(), conflicts));
+        }
+      } finally {
+        MediaStore.get().saveUsage();
+        MediaChecksums.get().save();
+      }
+      return reports;
+    }
+
+    public record MirrorReport(int pages, int changed, int failed, DownloadEngine.Report media) {}
+
+    // Crawl the sound and/or gallery pages and download their media as one pipeline. Each parsed page
+    // goes straight into the bounded download queue, which holds the crawl back when the transfers fall
+    // behind. Unchanged pages feed their stored entries instead, and changed pages are written to the
+    // catalog in batches while the mirror runs.
+    public static MirrorReport mirror(final List<Bird> birdIndex, final boolean sounds, final boolean images,
+    final int crawlParallelism, final int parallelism, final int perHostLimit, final boolean force)
+    throws IOException, InterruptedException {
+      final PageValidators validators = PageValidators.load(VALIDATORS_SAVE);
+      final CatalogFile stored = openCatalog();
+      Files.createDirectories(SOUND_SAVES);
+      Files.createDirectories(IMAGE_SAVES);
+      final List<Optional<?>> pages = new ArrayList<>();
+      final DownloadEngine.Report media;
+      try (Metrics.Phase phase = Metrics.get().phase("mirror_media", Metrics.MEDIA, 0)) {
+        final DownloadEngine engine = new DownloadEngine(Transport.get(), parallelism, perHostLimit, phase);
+        try {
+          if (sounds) {
+            final Checkpoint<BirdSound> checkpoint = new Checkpoint<>(validators, CatalogFile.Contents::sounds,
+              CatalogFile.Contents::withSounds);
+            pages.addAll(crawl("sound_index", birdIndex, crawlParallelism, bird -> {
+              final int row = stored == null ? -1 : stored.rowOf(bird.getId());
+              final PageFetch fetch = fetchPage(website() + bird.getSlug(), validators,
+                !force && row >= 0 && stored.hasSounds(row));
+              final Optional<PageExtractor.Page> page = fetch.page();
+              final List<BirdSound> entries = page.isPresent()
+                ? PageExtractor.sounds(page.get())
+                : stored.sounds(row);
+              if (page.isPresent()) {
+                checkpoint.add(bird, entries, fetch);
+              } else {
+                // The stored entries are already in the catalog
+                fetch.storeIn(validators);
+              }
+              phase.grow(entries.size());
+              for (BirdSound sound : entries) {
+                submit(engine, soundUri(bird, sound), soundSave(bird, sound));
+              }
+              return page;
+            }));
+            checkpoint.flush();
+          }
+          if (images) {
+            final Checkpoint<BirdImage> checkpoint = new Checkpoint<>(validators, CatalogFile.Contents::images,
+              CatalogFile.Contents::withImages);
+            pages.addAll(crawl("image_index", birdIndex, crawlParallelism, bird -> {
+              final int row = stored == null ? -1 : stored.rowOf(bird.getId());
+              final PageFetch fetch = fetchPage(website() + "fuglgallery.asp?ID=" + bird.getId(), validators,
+                !force && row >= 0 && stored.hasImages(row));
+              final Optional<PageExtractor.Page> page = fetch.page();
+              final List<BirdImage> entries = page.isPresent()
+                ? PageExtractor.images(bird, page.get())
+                : stored.images(row);
+              if (page.isPresent()) {
+                checkpoint.add(bird, entries, fetch);
+              } else {
+                // The stored entries are already in the catalog
+                fetch.storeIn(validators);
+              }
+              phase.grow(entries.size());
+              for (BirdImage image : entries) {
+                submit(engine, imageUri(bird, image), imageSave(bird, image));
+              }
+              return page;
+            }));
+            checkpoint.flush();
+          }
+        } finally {
+          media = engine.finish();
+        }
+      }
+      validators.save(VALIDATORS_SAVE);
+      return new MirrorReport(pages.size(), changedPages(pages), (int) pages.stream().filter(Objects::isNull).count(), media);
+    }
+
+    private static void submit(final DownloadEngine engine, final URI uri, final Path save) throws IOException {
+      try {
+        engine.submit(new DownloadEngine.Task(uri, save));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while queueing " + uri);
+      }
+    }
+
+    // Changed entries of a running mirror, written to the catalog every CHECKPOINT_PAGES pages
+    private static final class Checkpoint<T> {
+      private static final int CHECKPOINT_PAGES = 25;
+
+      private final PageValidators validators;
+      private final Function<CatalogFile.Contents, Map<Bird, List<T>>> section;
+      private final BiFunction<CatalogFile.Contents, Map<Bird, List<T>>, CatalogFile.Contents> with;
+      private final Map<Bird, List<T>> pending = new HashMap<>();
+      private final List<PageFetch> fetched = new ArrayList<>();
+
+      Checkpoint(final PageValidators validators, final Function<CatalogFile.Contents, Map<Bird, List<T>>> section,
+      final BiFunction<CatalogFile.Contents, Map<Bird, List<T>>, CatalogFile.Contents> with) {
+        this.validators = validators;
+        this.section = section;
+        this.with = with;
+      }
+
+      synchronized void add(final Bird bird, final List<T> entries, final PageFetch fetch) throws IOException {
+        pending.put(bird, entries);
+        fetched.add(fetch);
+        if (pending.size() >= CHECKPOINT_PAGES) {
+          flush();
+        }
+      }
+
+      synchronized void flush() throws IOException {
+        if (pending.isEmpty()) {
+          return;
+        }
+        final List<Bird> birds = new ArrayList<>(pending.keySet());
+        final List<Optional<List<T>>> pages = new ArrayList<>();
+        birds.forEach(bird -> pages.add(Optional.of(pending.get(bird))));
+        updateCatalog(contents -> {
+          final Map<Bird, List<T>> entries = new HashMap<>(section.apply(contents));
+          putPages(contents.birds(), birds, pages, entries);
+          return with.apply(contents, entries);
+        });
+        // Only after the entries are in the catalog, so a later run never skips a page it has not stored
+        fetched.forEach(fetch -> fetch.storeIn(validators));
+        validators.save(VALIDATORS_SAVE);
+        pending.clear();
+        fetched.clear();
+      }
+    }
+
+    static URI soundUri(final Bird bird, final BirdSound sound) {
+      return URI.create(website() + soundPath(bird, sound));
+    }
+
+    static URI imageUri(final Bird bird, final BirdImage image) {
+      return URI.create(website() + imagePath(bird, image));
+    }
+
+    // Where the media are on the site, relative to website()
+    static String soundPath(final Bird bird, final BirdSound sound) {
+      return "birdmedia/" + bird.getId() + "/" + sound.getId() + ".mp3";
+    }
+
+    static String imagePath(final Bird bird, final BirdImage image) {
+      return "birdmedia/" + bird.getId() + "/" + image.getSlug();
+    }
+
+    interface BirdPage<T> {
+      T fetch(Bird bird) throws IOException;
+    }
+
+    // Fetch a page for every bird on a bounded pool, timed as the named phase. Results come back in bird
+    // index order with null for pages that failed, so one bad page does not stop the rest of the crawl.
+    static <T> List<T> crawl(final String phaseName, final List<Bird> birdIndex, final int parallelism,
+    final BirdPage<T> page) throws IOException {
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("parallelism must be at least 1");
+      }
+      final ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+      try (Metrics.Phase phase = Metrics.get().phase(phaseName, Metrics.PAGE, birdIndex.size())) {
+        final List<Future<T>> fetches = new ArrayList<>(birdIndex.size());
+        for (Bird bird : birdIndex) {
+          fetches.add(pool.submit(() -> {
+            try {
+              return page.fetch(bird);
+            } finally {
+              phase.advance();
+            }
+          }));
+        }
+        final List<T> pages = new ArrayList<>(fetches.size());
+        for (int i = 0; i < fetches.size(); i++) {
+          try {
+            pages.add(fetches.get(i).get());
+          } catch (ExecutionException e) {
+            System.err.println("could not index " + birdIndex.get(i) + ": " + e.getCause());
+            pages.add(null);
+          }
+        }
+        return pages;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("crawl was interrupted");
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    // Store changed pages under the catalog's own bird objects, matched by id
+    private static <T> void putPages(final List<Bird> catalogBirds, final List<Bird> crawled,
+    final List<Optional<T>> pages, final Map<Bird, T> section) {
+      final Map<Integer, Bird> byId = new HashMap<>();
+      for (Bird bird : catalogBirds) {
+        if (bird.getId() != null) {
+          byId.put(bird.getId(), bird);
+        }
+      }
+      for (int i = 0; i < crawled.size(); i++) {
+        final Bird bird = crawled.get(i).getId() == null ? null : byId.get(crawled.get(i).getId());
+        if (bird != null && pages.get(i) != null && pages.get(i).isPresent()) {
+          section.put(bird, pages.get(i).get());
+        }
+      }
+    }
+
+    private static int changedPages(final List<? extends Optional<?>> pages) {
+      return (int) pages.stream().filter(page -> page != null && page.isPresent()).count();
+    }
+
+    private static void requireAllPages(final List<?> pages) throws IOException {
+      final long failed = pages.stream().filter(Objects::isNull).count();
+      if (failed > 0) {
+        throw new IOException(failed + " of " + pages.size() + " bird pages could not be indexed");
+      }
+    }
   
-    public static void downloadImageIndexEntry(Bird bird) throws IOException {
-      // TODO: The request to the bird slug page is incorrect. Should be replaced by request to https://www.fuglelyder.net/fuglgallery.asp?ID={{Bird id}}
-      Files.createDirectories(IMAGE_INDEX_SAVE);
-      String birdLink = WEBSITE + "fuglgallery.asp?ID=" + bird.getId();
-      List<BirdImage> images = new ArrayList<>();
-      Document birdDoc = Jsoup.connect(birdLink).get();
-      Path imagesSave = IMAGE_INDEX_SAVE.resolve(bird + ".ser");
-      Elements slides = Objects.requireNonNull(birdDoc.getElementsByClass("swiper-slide"));
-      for (Element slide : slides) {
-        final String slug = slide.getElementsByTag("img").first().attr("src").replace("birdmedia/" + bird.getId() + "/", "");
-        final String photographer = slide.getElementsByTag("a").first().text();
-        images.add(new BirdImage(slug, photographer));
-      }
-      writeIndexImages(imagesSave, images);
+    public static List<BirdImage> downloadImageIndexEntry(Bird bird) throws IOException {
+      final String birdLink = website() + "fuglgallery.asp?ID=" + bird.getId();
+      return PageExtractor.images(bird, fetchPage(birdLink, new PageValidators(), false).page().orElseThrow());
     }
    
-    public static void downloadAllImages(final HashMap<Bird, List<BirdImage>> imageIndex)
+    public static DownloadEngine.Report downloadAllImages(final Map<Bird, List<BirdImage>> imageIndex)
     throws IOException, InterruptedException {
-      // Download bird sounds
+      return downloadAllImages(imageIndex, DownloadEngine.DEFAULT_PARALLELISM, DownloadEngine.DEFAULT_PER_HOST);
+    }
+
+    public static DownloadEngine.Report downloadAllImages(final Map<Bird, List<BirdImage>> imageIndex,
+    final int parallelism, final int perHostLimit) throws IOException, InterruptedException {
+      // Download bird images
       Files.createDirectories(IMAGE_SAVES);
-      final HttpClient birdImageClient = HttpClient.newHttpClient();
-      for (Bird bird : imageIndex.keySet()) {
-        final List<BirdImage> images = imageIndex.get(bird);
-        for (BirdImage image : images) {
-          // TODO: Make the download request concurrent
-          // TODO: Perform the right download request
-          final Path birdImageSave = IMAGE_SAVES.resolve(bird.toString() + image.toString());
-          if (!Files.exists(birdImageSave)) {
+      final int total = imageIndex.values().stream().mapToInt(List::size).sum();
+      try (Metrics.Phase phase = Metrics.get().phase("image_media", Metrics.MEDIA, total)) {
+        final DownloadEngine engine = new DownloadEngine(Transport.get(), parallelism, perHostLimit, phase);
+        for (Bird bird : imageIndex.keySet()) {
+          final List<BirdImage> images = imageIndex.get(bird);
+          for (BirdImage image : images) {
+            // TODO: Perform the right download request
+            final Path birdImageSave = imageSave(bird, image);
             try {
-              final String birdImageURI = WEBSITE + "birdmedia/" + bird.getId() + "/" + image.getSlug();
-              final HttpRequest birdImageReq = HttpRequest.newBuilder(new URI(birdImageURI)).build();
-              birdImageClient.send(birdImageReq, HttpResponse.BodyHandlers.ofFile(birdImageSave));
-            } catch (URISyntaxException e) {
-              System.err.println("was unable to download sounds due to the uri being wrong");
+              engine.submit(new DownloadEngine.Task(imageUri(bird, image), birdImageSave));
+            } catch (IllegalArgumentException e) {
+              System.err.println("was unable to download images due to the uri being wrong");
+              phase.advance();
             }
           }
         }
+        return engine.finish();
       }
     }
   
-    public static void writeIndexSounds(final Path soundsSave, final List<BirdSound> birdSounds) throws IOException {
-      try (
-        OutputStream stream = Files.newOutputStream(soundsSave);
-        ObjectOutputStream out = new ObjectOutputStream(stream);
-      ) {
-        for (BirdSound birdSound : birdSounds) {
-          out.writeObject(birdSound);
+    // Resize every downloaded image to the given sizes, see DerivativeCache
+    public static DerivativeCache.Report generateDerivatives(final Map<Bird, List<BirdImage>> imageIndex,
+    final List<Integer> sizes, final int parallelism, final boolean force) throws IOException {
+      final List<Path> images = new ArrayList<>();
+      for (Bird bird : imageIndex.keySet()) {
+        for (BirdImage image : imageIndex.get(bird)) {
+          images.add(imageSave(bird, image));
         }
       }
+      final DerivativeCache cache = DerivativeCache.load(DERIVATIVE_SAVES);
+      try (Metrics.Phase phase = Metrics.get().phase("image_derivatives", Metrics.MEDIA, images.size())) {
+        return cache.generate(images, sizes, parallelism, force, phase);
+      } finally {
+        cache.save();
+      }
     }
-  
-    public static void writeIndexImages(final Path imagesSave, final List<BirdImage> birdImages) throws IOException {
-      try (
-        OutputStream stream = Files.newOutputStream(imagesSave);
-        ObjectOutputStream out = new ObjectOutputStream(stream);
-      ) {
-        for (BirdImage birdImage : birdImages) {
-          out.writeObject(birdImage);
+
+    // Hash the cached media in the directories and compare them with the checksums recorded at download
+    public static MediaChecksums.Report verifyMedia(final List<Path> directories, final int parallelism,
+    final boolean full) throws IOException {
+      final List<Path> files = new ArrayList<>();
+      for (Path directory : directories) {
+        files.addAll(MediaStore.get().files(directory));
+      }
+      final MediaChecksums checksums = MediaChecksums.get();
+      try (Metrics.Phase phase = Metrics.get().phase("media_verify", Metrics.MEDIA, files.size())) {
+        return checksums.verify(files, parallelism, full, phase);
+      } finally {
+        checksums.save();
+      }
+    }
+
+    public record RepairReport(DownloadEngine.Report media, List<Path> unknown) {}
+
+    // Delete the damaged files and download each of them again from the URL the catalog has for it.
+    // Files the catalog no longer lists cannot be fetched again and are left alone.
+    public static RepairReport repairMedia(final List<Path> damaged)
+    throws IOException, InterruptedException, ClassNotFoundException {
+      final Map<Path, URI> uris = new HashMap<>();
+      if (damaged.stream().anyMatch(file -> file.startsWith(SOUND_SAVES))) {
+        MediaSync.sounds(getSoundIndex(getBirdIndex())).values().forEach(item -> uris.put(item.save(), item.uri()));
+      }
+      if (damaged.stream().anyMatch(file -> file.startsWith(IMAGE_SAVES))) {
+        MediaSync.images(getImageIndex(getBirdIndex())).values().forEach(item -> uris.put(item.save(), item.uri()));
+      }
+      final List<Path> unknown = new ArrayList<>();
+      final DownloadEngine.Report media;
+      try (Metrics.Phase phase = Metrics.get().phase("media_repair", Metrics.MEDIA, damaged.size())) {
+        final DownloadEngine engine = new DownloadEngine(Transport.get(), DownloadEngine.DEFAULT_PARALLELISM,
+          DownloadEngine.DEFAULT_PER_HOST, phase);
+        try {
+          for (Path file : damaged) {
+            final URI uri = uris.get(file);
+            if (uri == null) {
+              unknown.add(file);
+              phase.advance();
+              continue;
+            }
+            MediaStore.get().delete(file);
+            submit(engine, uri, file);
+          }
+        } finally {
+          media = engine.finish();
         }
       }
+      return new RepairReport(media, List.copyOf(unknown));
+    }
+
+    public static Path soundSave(final Bird bird, final BirdSound sound) {
+      return SOUND_SAVES.resolve(bird.getSlug() + sound + ".mp3");
+    }
+
+    public static Path imageSave(final Bird bird, final BirdImage image) {
+      return IMAGE_SAVES.resolve(bird.toString() + image.toString());
+    }
+
+    public static void writeIndexSounds(final Path soundsSave, final List<BirdSound> birdSounds) throws IOException {
+      writeObjects(soundsSave, birdSounds);
+    }
+  
+    public static void writeIndexImages(final Path imagesSave, final List<BirdImage> birdImages) throws IOException {
+      writeObjects(imagesSave, birdImages);
     }
   
     public static void writeBirdIndex(final Path birdIndexSave, final List<Bird> birdIndex) throws IOException {
-      try (
-        OutputStream stream = Files.newOutputStream(birdIndexSave);
-        ObjectOutputStream out = new ObjectOutputStream(stream);
-      ) {
-        for (Bird bird : birdIndex) {
-          out.writeObject(bird);
+      writeObjects(birdIndexSave, birdIndex);
+    }
+
+    // Written next to the save and renamed over it, so a reader in another process never sees half a file
+    private static void writeObjects(final Path save, final List<?> objects) throws IOException {
+      final Path directory = save.toAbsolutePath().getParent();
+      final Path temp = Files.createTempFile(directory, save.getFileName().toString(), ".tmp");
+      try {
+        try (
+          OutputStream stream = Files.newOutputStream(temp);
+          ObjectOutputStream out = new ObjectOutputStream(stream);
+        ) {
+          for (Object object : objects) {
+            out.writeObject(object);
+          }
         }
+        Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(temp);
       }
     }
   }
@@ -0,0 +1,50 @@
+package no.andreas.fugler;
+
+// Just enough JSON writing for the few structured outputs of the CLI
+final class Json {
+  private Json() {
+  }
+
+  static String string(final String value) {
+    if (value == null) {
+      return "null";
+    }
+    final StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '"' -> out.append("\\\"");
+        case '\\' -> out.append("\\\\");
+        case '\n' -> out.append("\\n");
+        case '\r' -> out.append("\\r");
+        case '\t' -> out.append("\\t");
+        default -> {
+          if (c < 0x20) {
+            out.append(String.format("\\u%04x", (int) c));
+          } else {
+            out.append(c);
+          }
+        }
+      }
+    }
+    return out.append('"').toString();
+  }
+
+  static String number(final Number value) {
+    return value == null ? "null" : value.toString();
+  }
+
+  static String bird(final Bird bird) {
+    return "{\"id\":" + number(bird.getId()) + ",\"slug\":" + string(bird.getSlug()) + ",\"name\":" + string(bird.getName()) + "}";
+  }
+
+  static String sound(final BirdSound sound) {
+    return "{\"id\":" + number(sound.getId()) + ",\"slug\":" + string(sound.getSlug())
+      + ",\"durationMillis\":" + number(sound.getDurationMillis()) + ",\"bitrate\":" + number(sound.getBitrate())
+      + ",\"sampleRate\":" + number(sound.getSampleRate()) + ",\"size\":" + number(sound.getSize()) + "}";
+  }
+
+  static String image(final BirdImage image) {
+    return "{\"slug\":" + string(image.getSlug()) + ",\"photographer\":" + string(image.getName()) + "}";
+  }
+}
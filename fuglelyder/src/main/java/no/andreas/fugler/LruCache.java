@@ -0,0 +1,33 @@
+package no.andreas.fugler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Small thread safe cache that forgets the least recently used entry once it holds capacity entries
+final class LruCache<K, V> {
+  private final LinkedHashMap<K, V> entries;
+
+  LruCache(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  synchronized V get(final K key) {
+    return entries.get(key);
+  }
+
+  synchronized void put(final K key, final V value) {
+    entries.put(key, value);
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+}
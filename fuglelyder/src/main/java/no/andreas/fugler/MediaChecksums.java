@@ -0,0 +1,254 @@
+package no.andreas.fugler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The length and SHA-256 of every media file as its download completed, kept in checksums.bin together
+// with the mtime the file had when its content last matched. Verifying again only hashes the files whose
+// size or mtime changed since, unless asked to hash everything. Files from before checksums were recorded
+// are hashed once and taken as they are. Several fugl processes may record into the same file: saving
+// applies only the entries this process changed onto the file as it is now, under its lock.
+final class MediaChecksums {
+  static final int MAGIC = 0x46554353;
+  static final short VERSION = 1;
+
+  record Recorded(long length, String hash, long verified) {}
+
+  enum Problem { EMPTY, TRUNCATED, CORRUPT }
+
+  record Damage(Path file, Problem problem, String detail) {
+    @Override
+    public String toString() {
+      return file + ": " + problem.name().toLowerCase() + ", " + detail;
+    }
+  }
+
+  record Report(int hashed, int unchanged, int unrecorded, List<Damage> damaged, List<String> failures) {}
+
+  private enum Outcome { HASHED, UNCHANGED, UNRECORDED, DAMAGED }
+
+  private static MediaChecksums shared;
+
+  private final Path save;
+  private final Map<String, Recorded> recorded = new ConcurrentHashMap<>();
+  // Recorded or forgotten since the last save
+  private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+  private MediaChecksums(final Path save) {
+    this.save = save;
+  }
+
+  // The checksums of this process, shared by the downloads that record them and verify
+  static synchronized MediaChecksums get() throws IOException {
+    if (shared == null) {
+      shared = load(FuglelyderSkraper.CHECKSUM_SAVE);
+    }
+    return shared;
+  }
+
+  // Save the checksums recorded by this process, if any
+  static synchronized void flush() throws IOException {
+    if (shared != null && !shared.changed.isEmpty()) {
+      shared.save();
+    }
+  }
+
+  @SuppressWarnings("try")
+  static MediaChecksums load(final Path save) throws IOException {
+    final MediaChecksums checksums = new MediaChecksums(save);
+    try (CacheLock.Held held = CacheLock.of(save).shared()) {
+      checksums.recorded.putAll(read(save));
+    }
+    return checksums;
+  }
+
+  private static Map<String, Recorded> read(final Path save) throws IOException {
+    final Map<String, Recorded> recorded = new TreeMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(save)))) {
+      if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+        System.err.println("ignoring unknown checksum file " + save + ", every file will be taken as it is");
+        return recorded;
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        recorded.put(in.readUTF(), new Recorded(in.readLong(), in.readUTF(), in.readLong()));
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing recorded yet
+    }
+    return recorded;
+  }
+
+  // The changes of this process onto the file as another process may have left it, then those of the other
+  // processes back into this one
+  @SuppressWarnings("try")
+  synchronized void save() throws IOException {
+    final List<String> keys = new ArrayList<>(changed);
+    changed.removeAll(keys);
+    try (CacheLock.Held held = CacheLock.of(save).exclusive()) {
+      final Map<String, Recorded> sorted = read(save);
+      for (String key : keys) {
+        final Recorded mine = recorded.get(key);
+        if (mine == null) {
+          sorted.remove(key);
+        } else {
+          sorted.put(key, mine);
+        }
+      }
+      write(sorted);
+      // Entries recorded while this was saving are left for the next save
+      recorded.keySet().removeIf(key -> !sorted.containsKey(key) && !changed.contains(key));
+      sorted.forEach((key, theirs) -> {
+        if (!changed.contains(key)) {
+          recorded.put(key, theirs);
+        }
+      });
+    } catch (IOException | RuntimeException e) {
+      changed.addAll(keys);
+      throw e;
+    }
+  }
+
+  private void write(final Map<String, Recorded> sorted) throws IOException {
+    final Path directory = save.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    final Path temp = Files.createTempFile(directory, save.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, Recorded> entry : sorted.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue().length());
+          out.writeUTF(entry.getValue().hash());
+          out.writeLong(entry.getValue().verified());
+        }
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  Recorded get(final Path file) {
+    return recorded.get(file.toString());
+  }
+
+  void record(final Path file, final long length, final String hash, final long modified) {
+    recorded.put(file.toString(), new Recorded(length, hash, modified));
+    changed.add(file.toString());
+  }
+
+  void forget(final Path file) {
+    if (recorded.remove(file.toString()) != null) {
+      changed.add(file.toString());
+    }
+  }
+
+  static String hash(final ByteBuffer data) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(data.duplicate());
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required to be available", e);
+    }
+  }
+
+  // Check every file, loose or packed, against its checksum on a fork-join pool, reading through mappings
+  Report verify(final List<Path> files, final int parallelism, final boolean full, final Metrics.Phase phase)
+  throws IOException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+    final MediaStore store = MediaStore.get();
+    final AtomicInteger hashed = new AtomicInteger();
+    final AtomicInteger unchanged = new AtomicInteger();
+    final AtomicInteger unrecorded = new AtomicInteger();
+    final List<Damage> damaged = Collections.synchronizedList(new ArrayList<>());
+    final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    final List<Callable<Void>> tasks = new ArrayList<>(files.size());
+    for (Path file : files) {
+      tasks.add(() -> {
+        try {
+          switch (verify(store, file, full, damaged)) {
+            case HASHED -> hashed.incrementAndGet();
+            case UNCHANGED -> unchanged.incrementAndGet();
+            case UNRECORDED -> unrecorded.incrementAndGet();
+            case DAMAGED -> { }
+          }
+        } catch (IOException | RuntimeException e) {
+          failures.add(file + ": " + e.getMessage());
+        } finally {
+          phase.advance();
+        }
+        return null;
+      });
+    }
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invokeAll(tasks);
+    } finally {
+      pool.shutdownNow();
+    }
+    final List<Damage> sorted = new ArrayList<>(damaged);
+    sorted.sort((a, b) -> a.file().compareTo(b.file()));
+    return new Report(hashed.get(), unchanged.get(), unrecorded.get(), sorted, List.copyOf(failures));
+  }
+
+  private Outcome verify(final MediaStore store, final Path file, final boolean full, final List<Damage> damaged)
+  throws IOException {
+    final MediaStore.Location location = store.locate(file);
+    if (location == null) {
+      throw new NoSuchFileException(file.toString(), null, "removed while verifying");
+    }
+    final Recorded known = recorded.get(file.toString());
+    if (location.length() == 0) {
+      damaged.add(new Damage(file, Problem.EMPTY, known == null ? "0 bytes" : "0 of " + known.length() + " bytes"));
+      return Outcome.DAMAGED;
+    }
+    if (known != null && location.length() < known.length()) {
+      damaged.add(new Damage(file, Problem.TRUNCATED, location.length() + " of " + known.length() + " bytes"));
+      return Outcome.DAMAGED;
+    }
+    if (!full && known != null && known.length() == location.length() && known.verified() == location.modified()) {
+      return Outcome.UNCHANGED;
+    }
+    final String hash = hash(store.map(file));
+    if (known == null) {
+      record(file, location.length(), hash, location.modified());
+      return Outcome.UNRECORDED;
+    }
+    if (known.length() != location.length() || !known.hash().equals(hash)) {
+      damaged.add(new Damage(file, Problem.CORRUPT, location.length() + " bytes, SHA-256 " + hash.substring(0, 12)
+        + " where " + known.hash().substring(0, 12) + " was recorded"));
+      return Outcome.DAMAGED;
+    }
+    record(file, known.length(), known.hash(), location.modified());
+    return Outcome.HASHED;
+  }
+}
@@ -0,0 +1,717 @@
+package no.andreas.fugler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Where the downloaded media live. A file is either loose, at the path its download wrote it to, or
+// packed by `fugl pack` into one of the append-only pack files under the pack directory, found through
+// pack.idx by that same path. Readers locate a file and map or transfer it straight from whichever
+// layout holds it; a loose file wins, so a fresh download shadows its packed copy until the next pack.
+//
+// Pack files are a header (magic "FUGK", u16 version) followed by the media bytes back to back.
+// pack.idx holds, per path, the pack number, offset, length and the mtime the loose file had.
+//
+// usage.idx holds the size and last access of every media file in either layout, so the cache can be
+// held to a size budget by evicting the least recently used media without walking the directories.
+// Downloads and serve count as access; analysis and thumbnail generation read files without touching them.
+//
+// Several fugl processes may share the store. Every change to pack.idx starts from the file as it is,
+// under the exclusive store lock, and saving usage.idx applies only the entries this process changed.
+final class MediaStore {
+  static final int PACK_MAGIC = 0x4655474B;
+  static final int INDEX_MAGIC = 0x46555049;
+  static final int USAGE_MAGIC = 0x46554755;
+  static final short VERSION = 1;
+  // A pack is mapped whole, so it stays well under the 2 GiB one mapping can cover
+  static final long MAX_PACK_SIZE = 1L << 30;
+
+  private static final int PACK_HEADER_SIZE = 6;
+
+  record Location(Path file, long offset, long length, long modified) {}
+
+  record PackReport(int packed, long bytes, int packs, long unreferenced) {}
+
+  record GcReport(int evicted, long freed, long reclaimed, long remaining) {}
+
+  private record Packed(int pack, long offset, long length, long modified) {}
+
+  private record Usage(long size, long accessed) {}
+
+  private static MediaStore shared;
+
+  private final Path root;
+  private final List<Path> directories;
+  private final Map<String, Packed> index = new ConcurrentHashMap<>();
+  private final Map<Integer, MappedByteBuffer> mapped = new ConcurrentHashMap<>();
+  // pack.idx as it was when the index was last read
+  private volatile List<Object> indexStamp;
+  private final Map<String, Usage> usage = new ConcurrentHashMap<>();
+  // Usage entries added, touched or removed since the last save
+  private final Set<String> usageChanged = ConcurrentHashMap.newKeySet();
+  private final CacheLock lock;
+  // Guarded by this, like every change to the size of the cache
+  private long total;
+  private long cap;
+
+  private MediaStore(final Path root, final List<Path> directories) {
+    this.root = root;
+    this.directories = List.copyOf(directories);
+    this.lock = CacheLock.of(root.resolve("pack.idx"));
+  }
+
+  // The store of this process over the default pack directory and media directories
+  static synchronized MediaStore get() throws IOException {
+    if (shared == null) {
+      shared = load(FuglelyderSkraper.PACK_SAVES, List.of(FuglelyderSkraper.SOUND_SAVES, FuglelyderSkraper.IMAGE_SAVES));
+    }
+    return shared;
+  }
+
+  // Save the access times gathered by this process, if the store was used at all
+  static synchronized void flush() throws IOException {
+    if (shared != null && !shared.usageChanged.isEmpty()) {
+      shared.saveUsage();
+    }
+  }
+
+  @SuppressWarnings("try")
+  static MediaStore load(final Path root, final List<Path> directories) throws IOException {
+    final MediaStore store = new MediaStore(root, directories);
+    try (CacheLock.Held held = store.lock.shared()) {
+      store.index.putAll(store.readIndex());
+      store.loadUsage();
+    }
+    return store;
+  }
+
+  private Map<String, Packed> readIndex() throws IOException {
+    final Path save = root.resolve("pack.idx");
+    indexStamp = indexStamp();
+    final Map<String, Packed> packed = new TreeMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(save)))) {
+      if (in.readInt() != INDEX_MAGIC || in.readShort() != VERSION) {
+        throw new IOException(save + " is not a pack index this version of fugl can read");
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        packed.put(in.readUTF(), new Packed(in.readInt(), in.readLong(), in.readLong(), in.readLong()));
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing packed yet
+    }
+    return packed;
+  }
+
+  // Identity, mtime and size of pack.idx, which every save replaces by a rename; null when there is none
+  private List<Object> indexStamp() throws IOException {
+    try {
+      final BasicFileAttributes attributes = Files.readAttributes(root.resolve("pack.idx"), BasicFileAttributes.class);
+      return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  // Take the exclusive store lock and bring the pack index up to what other processes made of it.
+  // Entries are replaced in place, readers in this process never see the index empty.
+  private CacheLock.Held lockIndex() throws IOException {
+    final CacheLock.Held held = lock.exclusive();
+    try {
+      refreshIndex();
+    } catch (IOException | RuntimeException e) {
+      held.close();
+      throw e;
+    }
+    return held;
+  }
+
+  // Pack numbers are reused once the packs are deleted, so a pack whose entries changed is mapped again
+  private void refreshIndex() throws IOException {
+    final Map<String, Packed> current = readIndex();
+    final Set<Integer> changed = new HashSet<>();
+    for (Map.Entry<String, Packed> entry : index.entrySet()) {
+      if (!entry.getValue().equals(current.get(entry.getKey()))) {
+        changed.add(entry.getValue().pack());
+      }
+    }
+    for (Map.Entry<String, Packed> entry : current.entrySet()) {
+      if (!entry.getValue().equals(index.get(entry.getKey()))) {
+        changed.add(entry.getValue().pack());
+      }
+    }
+    index.keySet().retainAll(current.keySet());
+    index.putAll(current);
+    mapped.keySet().removeAll(changed);
+  }
+
+  private Map<String, Usage> readUsage() throws IOException {
+    final Path save = root.resolve("usage.idx");
+    final Map<String, Usage> used = new TreeMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(save)))) {
+      if (in.readInt() == USAGE_MAGIC && in.readShort() == VERSION) {
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          used.put(in.readUTF(), new Usage(in.readLong(), in.readLong()));
+        }
+      } else {
+        System.err.println("ignoring unknown media usage file " + save + ", it will be rebuilt");
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing used yet
+    }
+    return used;
+  }
+
+  // The usage index, rebuilt with one walk over the media directories when there is none yet
+  private void loadUsage() throws IOException {
+    usage.putAll(readUsage());
+    if (usage.isEmpty()) {
+      for (Map.Entry<String, Packed> entry : index.entrySet()) {
+        usage.put(entry.getKey(), new Usage(entry.getValue().length(), entry.getValue().modified()));
+      }
+      for (Path directory : directories) {
+        for (Path file : looseFiles(directory)) {
+          final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+          usage.put(file.toString(), new Usage(attributes.size(), attributes.lastModifiedTime().toMillis()));
+        }
+      }
+      usageChanged.addAll(usage.keySet());
+    }
+    total = usage.values().stream().mapToLong(Usage::size).sum();
+  }
+
+  // Bytes of media the cache holds, loose and packed
+  synchronized long size() {
+    return total;
+  }
+
+  // Evict the least recently used media whenever a download takes the cache over this many bytes, 0 for no cap
+  synchronized void limit(final long maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("the cache size cap cannot be negative");
+    }
+    cap = maxSize;
+  }
+
+  // Mark the media as just used, so it is among the last to be evicted
+  void touch(final Path save) {
+    if (usage.computeIfPresent(save.toString(), (key, used) -> new Usage(used.size(), System.currentTimeMillis())) != null) {
+      usageChanged.add(save.toString());
+    }
+  }
+
+  // Account for a file a download just wrote, evicting older media if it takes the cache over its cap
+  synchronized void added(final Path save, final long size) throws IOException {
+    final Usage previous = usage.put(save.toString(), new Usage(size, System.currentTimeMillis()));
+    total += size - (previous == null ? 0 : previous.size());
+    usageChanged.add(save.toString());
+    if (cap > 0 && total > cap) {
+      evict(cap, save.toString());
+      // Evicted packed media only free their space once the packs are rewritten
+      if (unreferenced() > cap / 10) {
+        compact();
+      }
+    }
+  }
+
+  // Evict the least recently used media until the cache fits in maxSize bytes, then compact the packs
+  @SuppressWarnings("try")
+  synchronized GcReport gc(final long maxSize) throws IOException {
+    try (CacheLock.Held held = lockIndex()) {
+      // Start from the usage of every process, not only what this one has seen
+      saveUsage();
+      final long before = total;
+      final int evicted = evict(maxSize, null);
+      final long reclaimed = compact();
+      saveUsage();
+      return new GcReport(evicted, before - total, reclaimed, total);
+    }
+  }
+
+  // One pass over the usage index, oldest access first. The indexes are saved before returning, so they
+  // never list media that are gone.
+  @SuppressWarnings("try")
+  private int evict(final long budget, final String keep) throws IOException {
+    if (total <= budget) {
+      return 0;
+    }
+    try (CacheLock.Held held = lockIndex()) {
+      return evictLocked(budget, keep);
+    }
+  }
+
+  private int evictLocked(final long budget, final String keep) throws IOException {
+    final List<Map.Entry<String, Usage>> oldest = new ArrayList<>(usage.entrySet());
+    oldest.sort(Comparator.comparingLong(entry -> entry.getValue().accessed()));
+    int evicted = 0;
+    boolean unpacked = false;
+    for (Map.Entry<String, Usage> entry : oldest) {
+      if (total <= budget) {
+        break;
+      }
+      if (entry.getKey().equals(keep)) {
+        continue;
+      }
+      Files.deleteIfExists(Path.of(entry.getKey()));
+      unpacked |= index.remove(entry.getKey()) != null;
+      forget(entry.getKey());
+      evicted++;
+    }
+    if (unpacked) {
+      saveIndex();
+    }
+    saveUsage();
+    return evicted;
+  }
+
+  // Where the media saved at the given path can be read, or null when neither layout has it
+  Location locate(final Path save) throws IOException {
+    try {
+      final BasicFileAttributes attributes = Files.readAttributes(save, BasicFileAttributes.class);
+      if (attributes.isRegularFile()) {
+        return new Location(save, 0, attributes.size(), attributes.lastModifiedTime().toMillis());
+      }
+    } catch (NoSuchFileException e) {
+      // Not loose, maybe packed
+    }
+    final Packed packed = index.get(save.toString());
+    return packed == null ? null : new Location(packPath(packed.pack()), packed.offset(), packed.length(), packed.modified());
+  }
+
+  boolean exists(final Path save) {
+    return index.containsKey(save.toString()) || Files.isRegularFile(save);
+  }
+
+  // The media bytes, mapped read-only from the loose file or sliced from the mapped pack. Packs are only
+  // rewritten under the exclusive lock, so the index is brought up to date and the media mapped under the
+  // shared one; a mapping keeps its bytes when the file is deleted or replaced afterwards.
+  @SuppressWarnings("try")
+  ByteBuffer map(final Path save) throws IOException {
+    try (CacheLock.Held held = lock.shared()) {
+      if (!Objects.equals(indexStamp, indexStamp())) {
+        refreshIndex();
+      }
+      return mapOnce(save);
+    }
+  }
+
+  private ByteBuffer mapOnce(final Path save) throws IOException {
+    final Packed packed = Files.isRegularFile(save) ? null : index.get(save.toString());
+    if (packed == null) {
+      try (FileChannel channel = FileChannel.open(save, StandardOpenOption.READ)) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+    }
+    MappedByteBuffer pack = mapped.get(packed.pack());
+    if (pack == null || pack.capacity() < packed.offset() + packed.length()) {
+      try (FileChannel channel = FileChannel.open(packPath(packed.pack()), StandardOpenOption.READ)) {
+        pack = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      mapped.put(packed.pack(), pack);
+    }
+    return pack.slice((int) packed.offset(), (int) packed.length());
+  }
+
+  // Every media file directly in the directory, loose or packed
+  List<Path> files(final Path directory) throws IOException {
+    final String prefix = directory.toString() + directory.getFileSystem().getSeparator();
+    final TreeSet<Path> files = new TreeSet<>(looseFiles(directory));
+    index.keySet().stream().filter(key -> key.startsWith(prefix)).map(Path::of).forEach(files::add);
+    return List.copyOf(files);
+  }
+
+  // Remove the media at the path from both layouts. Packed bytes stay in the pack until it is rewritten.
+  @SuppressWarnings("try")
+  synchronized boolean delete(final Path save) throws IOException {
+    try (CacheLock.Held held = lockIndex()) {
+      final boolean loose = Files.deleteIfExists(save);
+      final boolean packed = index.remove(save.toString()) != null;
+      if (packed) {
+        saveIndex();
+      }
+      forget(save.toString());
+      saveUsage();
+      return loose || packed;
+    }
+  }
+
+  // Remove every file under the directory, loose, partial or packed, and the packs once nothing is left in them
+  @SuppressWarnings("try")
+  synchronized int deleteAll(final Path directory) throws IOException {
+    try (CacheLock.Held held = lockIndex()) {
+      return deleteAllLocked(directory);
+    }
+  }
+
+  private int deleteAllLocked(final Path directory) throws IOException {
+    int deleted = 0;
+    if (Files.isDirectory(directory)) {
+      try (Stream<Path> files = Files.walk(directory)) {
+        for (Path file : files.filter(Files::isRegularFile).toList()) {
+          deleted += Files.deleteIfExists(file) ? 1 : 0;
+          MediaChecksums.get().forget(file);
+        }
+      }
+    }
+    final String prefix = directory.toString() + directory.getFileSystem().getSeparator();
+    final List<String> packed = index.keySet().stream().filter(key -> key.startsWith(prefix)).toList();
+    packed.forEach(index::remove);
+    if (index.isEmpty()) {
+      deletePacks();
+    } else if (!packed.isEmpty()) {
+      saveIndex();
+    }
+    for (String key : usage.keySet().stream().filter(key -> key.startsWith(prefix)).toList()) {
+      forget(key);
+    }
+    saveUsage();
+    return deleted + packed.size();
+  }
+
+  // Drop the usage and the recorded checksum of media that left the cache
+  private void forget(final String key) throws IOException {
+    MediaChecksums.get().forget(Path.of(key));
+    final Usage forgotten = usage.remove(key);
+    if (forgotten != null) {
+      total -= forgotten.size();
+      usageChanged.add(key);
+    }
+  }
+
+  // Append every loose file under the directories to the packs, then remove the loose files.
+  // The pack is forced to disk and the index saved before anything loose is deleted.
+  @SuppressWarnings("try")
+  synchronized PackReport pack(final List<Path> directories) throws IOException {
+    try (CacheLock.Held held = lockIndex()) {
+      return packLocked(directories);
+    }
+  }
+
+  private PackReport packLocked(final List<Path> directories) throws IOException {
+    Files.createDirectories(root);
+    final List<Path> loose = new ArrayList<>();
+    for (Path directory : directories) {
+      loose.addAll(looseFiles(directory));
+    }
+    if (loose.isEmpty()) {
+      return new PackReport(0, 0, lastPack(), unreferenced());
+    }
+    long bytes = 0;
+    final Map<String, Packed> added = new TreeMap<>();
+    try (PackWriter writer = new PackWriter(Math.max(1, lastPack()))) {
+      for (Path file : loose) {
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+          added.put(file.toString(), writer.append(in, 0, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        }
+        bytes += attributes.size();
+      }
+    }
+    index.putAll(added);
+    saveIndex();
+    for (String file : added.keySet()) {
+      Files.deleteIfExists(Path.of(file));
+    }
+    return new PackReport(added.size(), bytes, lastPack(), unreferenced());
+  }
+
+  // Write every packed file back to its loose path, keeping its mtime, then remove the packs.
+  // A loose file that is already there is newer than its packed copy and is kept.
+  @SuppressWarnings("try")
+  synchronized int unpack() throws IOException {
+    try (CacheLock.Held held = lockIndex()) {
+      return unpackLocked();
+    }
+  }
+
+  private int unpackLocked() throws IOException {
+    int unpacked = 0;
+    for (Map.Entry<String, Packed> entry : new TreeMap<>(index).entrySet()) {
+      final Path save = Path.of(entry.getKey());
+      final Packed packed = entry.getValue();
+      if (Files.exists(save)) {
+        continue;
+      }
+      Files.createDirectories(save.toAbsolutePath().getParent());
+      final Path temp = Files.createTempFile(save.toAbsolutePath().getParent(), save.getFileName().toString(), ".tmp");
+      try {
+        try (FileChannel in = FileChannel.open(packPath(packed.pack()), StandardOpenOption.READ);
+          FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+          for (long done = 0; done < packed.length(); ) {
+            done += in.transferTo(packed.offset() + done, packed.length() - done, out);
+          }
+          out.force(true);
+        }
+        Files.setLastModifiedTime(temp, FileTime.fromMillis(packed.modified()));
+        Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      unpacked++;
+    }
+    index.clear();
+    deletePacks();
+    return unpacked;
+  }
+
+  // Rewrite the packed media into fresh packs and drop the old ones, returning the unreferenced bytes reclaimed
+  @SuppressWarnings("try")
+  synchronized long compact() throws IOException {
+    try (CacheLock.Held held = lockIndex()) {
+      return compactLocked();
+    }
+  }
+
+  private long compactLocked() throws IOException {
+    final long reclaimed = unreferenced();
+    if (reclaimed == 0) {
+      return 0;
+    }
+    if (index.isEmpty()) {
+      deletePacks();
+      return reclaimed;
+    }
+    final int last = lastPack();
+    final List<Map.Entry<String, Packed>> live = new ArrayList<>(index.entrySet());
+    live.sort(Comparator.comparingInt((Map.Entry<String, Packed> entry) -> entry.getValue().pack())
+      .thenComparingLong(entry -> entry.getValue().offset()));
+    final Map<String, Packed> moved = new TreeMap<>();
+    try (PackWriter writer = new PackWriter(last + 1)) {
+      FileChannel in = null;
+      int reading = 0;
+      try {
+        for (Map.Entry<String, Packed> entry : live) {
+          final Packed packed = entry.getValue();
+          if (in == null || reading != packed.pack()) {
+            if (in != null) {
+              in.close();
+            }
+            reading = packed.pack();
+            in = FileChannel.open(packPath(reading), StandardOpenOption.READ);
+          }
+          moved.put(entry.getKey(), writer.append(in, packed.offset(), packed.length(), packed.modified()));
+        }
+      } finally {
+        if (in != null) {
+          in.close();
+        }
+      }
+    }
+    index.putAll(moved);
+    saveIndex();
+    for (int pack = 1; pack <= last; pack++) {
+      mapped.remove(pack);
+      Files.deleteIfExists(packPath(pack));
+    }
+    return reclaimed;
+  }
+
+  // Pack bytes no index entry points at any more, left by deleted, evicted or re-packed files
+  long unreferenced() throws IOException {
+    long total = 0;
+    for (int pack = 1; pack <= lastPack(); pack++) {
+      if (Files.exists(packPath(pack))) {
+        total += Files.size(packPath(pack)) - PACK_HEADER_SIZE;
+      }
+    }
+    for (Packed packed : index.values()) {
+      total -= packed.length();
+    }
+    return total;
+  }
+
+  // Complete media files directly in the directory, without the partial downloads and temporary files
+  private static List<Path> looseFiles(final Path directory) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return List.of();
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(Files::isRegularFile).filter(file -> {
+        final String name = file.getFileName().toString();
+        return !name.endsWith(".part") && !name.endsWith(".part.len") && !name.endsWith(".tmp");
+      }).sorted().toList();
+    }
+  }
+
+  private Path packPath(final int pack) {
+    return root.resolve(String.format("media-%04d.pack", pack));
+  }
+
+  // Number of the newest pack, 0 when there is none
+  private int lastPack() throws IOException {
+    int last = 0;
+    if (Files.isDirectory(root)) {
+      try (DirectoryStream<Path> packs = Files.newDirectoryStream(root, "media-*.pack")) {
+        for (Path pack : packs) {
+          final String name = pack.getFileName().toString();
+          last = Math.max(last, Integer.parseInt(name.substring(6, name.length() - 5)));
+        }
+      }
+    }
+    return last;
+  }
+
+  // Appends media to a pack, going on to the next pack number when the next file would not fit
+  private final class PackWriter implements Closeable {
+    private int pack;
+    private FileChannel out;
+
+    PackWriter(final int pack) throws IOException {
+      this.pack = pack;
+      this.out = openPack(pack);
+    }
+
+    Packed append(final FileChannel in, final long offset, final long length, final long modified) throws IOException {
+      if (out.size() > PACK_HEADER_SIZE && out.size() + length > MAX_PACK_SIZE) {
+        close();
+        out = openPack(++pack);
+      }
+      final long at = out.size();
+      out.position(at);
+      for (long done = 0; done < length; ) {
+        done += in.transferTo(offset + done, length - done, out);
+      }
+      return new Packed(pack, at, length, modified);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.force(true);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private FileChannel openPack(final int pack) throws IOException {
+    final FileChannel channel = FileChannel.open(packPath(pack), StandardOpenOption.CREATE, StandardOpenOption.READ,
+      StandardOpenOption.WRITE);
+    if (channel.size() == 0) {
+      channel.write(ByteBuffer.allocate(PACK_HEADER_SIZE).putInt(PACK_MAGIC).putShort(VERSION).flip());
+    } else {
+      final ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_SIZE);
+      channel.read(header, 0);
+      if (header.getInt(0) != PACK_MAGIC || header.getShort(4) != VERSION) {
+        channel.close();
+        throw new IOException(packPath(pack) + " is not a media pack");
+      }
+    }
+    return channel;
+  }
+
+  private void deletePacks() throws IOException {
+    mapped.clear();
+    Files.deleteIfExists(root.resolve("pack.idx"));
+    for (int pack = lastPack(); pack > 0; pack--) {
+      Files.deleteIfExists(packPath(pack));
+    }
+  }
+
+  // The entries this process changed onto usage.idx as it is now, then the entries of the other processes
+  // back into this one, so the size of the cache counts the media every process downloaded
+  @SuppressWarnings("try")
+  synchronized void saveUsage() throws IOException {
+    final List<String> keys = new ArrayList<>(usageChanged);
+    usageChanged.removeAll(keys);
+    try (CacheLock.Held held = lock.exclusive()) {
+      final Map<String, Usage> sorted = readUsage();
+      for (String key : keys) {
+        final Usage mine = usage.get(key);
+        if (mine == null) {
+          sorted.remove(key);
+        } else {
+          sorted.put(key, mine);
+        }
+      }
+      writeUsage(sorted);
+      // Touches made while this was saving are left for the next save
+      usage.keySet().removeIf(key -> !sorted.containsKey(key) && !usageChanged.contains(key));
+      sorted.forEach((key, theirs) -> {
+        if (!usageChanged.contains(key)) {
+          usage.put(key, theirs);
+        }
+      });
+      total = usage.values().stream().mapToLong(Usage::size).sum();
+    } catch (IOException | RuntimeException e) {
+      usageChanged.addAll(keys);
+      throw e;
+    }
+  }
+
+  private void writeUsage(final Map<String, Usage> sorted) throws IOException {
+    Files.createDirectories(root);
+    final Path save = root.resolve("usage.idx");
+    final Path temp = Files.createTempFile(root.toAbsolutePath(), "usage.idx", ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+        out.writeInt(USAGE_MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, Usage> entry : sorted.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue().size());
+          out.writeLong(entry.getValue().accessed());
+        }
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  // Only called under the exclusive store lock, after lockIndex() brought the index up to date
+  private void saveIndex() throws IOException {
+    final Path save = root.resolve("pack.idx");
+    final Path temp = Files.createTempFile(root.toAbsolutePath(), "pack.idx", ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+        final Map<String, Packed> sorted = new TreeMap<>(index);
+        out.writeInt(INDEX_MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, Packed> entry : sorted.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeInt(entry.getValue().pack());
+          out.writeLong(entry.getValue().offset());
+          out.writeLong(entry.getValue().length());
+          out.writeLong(entry.getValue().modified());
+        }
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      indexStamp = indexStamp();
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
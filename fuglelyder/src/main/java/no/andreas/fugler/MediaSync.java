@@ -0,0 +1,168 @@
+package no.andreas.fugler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+// The media of the catalog as of the last sync, so the next one only touches what changed since. Every
+// sound and image is an item keyed by bird id and sound id or image slug, "sound 1000/4101" and
+// "image 1000/1000_1.jpg", with its path on the site and the path it is saved to. The site path is relative
+// to website(), so syncing from another copy of the site with --base-url changes nothing. An item whose site
+// path or save path moved, say because the bird got a new slug, is changed; one that is gone from the catalog
+// is removed.
+final class MediaSync {
+  static final int MAGIC = 0x46555359;
+  static final short VERSION = 2;
+
+  record Item(String path, Path save) {
+    URI uri() {
+      return URI.create(FuglelyderSkraper.website() + path);
+    }
+  }
+
+  // before is null for added items, after is null for removed ones
+  record Change(String key, Item before, Item after) {}
+
+  record Diff(List<Change> added, List<Change> changed, List<Change> removed, int unchanged) {}
+
+  private MediaSync() {
+  }
+
+  @SuppressWarnings("try")
+  static Map<String, Item> load(final Path save) throws IOException {
+    try (CacheLock.Held held = CacheLock.of(save).shared()) {
+      return read(save);
+    }
+  }
+
+  private static Map<String, Item> read(final Path save) throws IOException {
+    final Map<String, Item> items = new TreeMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(save)))) {
+      final int magic = in.readInt();
+      final short version = in.readShort();
+      if (magic != MAGIC || version != VERSION && version != 1) {
+        System.err.println("ignoring unknown sync state " + save + ", every item will be taken as new");
+        return items;
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        final String key = in.readUTF();
+        final String path = version == 1 ? path(URI.create(in.readUTF())) : in.readUTF();
+        items.put(key, new Item(path, Path.of(in.readUTF())));
+      }
+    } catch (NoSuchFileException e) {
+      // Never synced
+    }
+    return items;
+  }
+
+  // Only the items of the given keys are replaced, the file may hold those of another sync, say one of images
+  // while this one synced sounds
+  @SuppressWarnings("try")
+  static void save(final Path save, final Map<String, Item> items, final Predicate<String> owned) throws IOException {
+    try (CacheLock.Held held = CacheLock.of(save).exclusive()) {
+      final Map<String, Item> merged = read(save);
+      merged.keySet().removeIf(owned);
+      items.forEach((key, item) -> {
+        if (owned.test(key)) {
+          merged.put(key, item);
+        }
+      });
+      write(save, merged);
+    }
+  }
+
+  private static void write(final Path save, final Map<String, Item> items) throws IOException {
+    final Path directory = save.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    final Path temp = Files.createTempFile(directory, save.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+        final Map<String, Item> sorted = new TreeMap<>(items);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, Item> entry : sorted.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeUTF(entry.getValue().path());
+          out.writeUTF(entry.getValue().save().toString());
+        }
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  static Map<String, Item> sounds(final Map<Bird, List<BirdSound>> soundIndex) {
+    final Map<String, Item> items = new TreeMap<>();
+    for (Map.Entry<Bird, List<BirdSound>> entry : soundIndex.entrySet()) {
+      final Bird bird = entry.getKey();
+      for (BirdSound sound : entry.getValue()) {
+        items.put("sound " + bird.getId() + "/" + sound.getId(),
+          new Item(FuglelyderSkraper.soundPath(bird, sound), FuglelyderSkraper.soundSave(bird, sound)));
+      }
+    }
+    return items;
+  }
+
+  static Map<String, Item> images(final Map<Bird, List<BirdImage>> imageIndex) {
+    final Map<String, Item> items = new TreeMap<>();
+    for (Map.Entry<Bird, List<BirdImage>> entry : imageIndex.entrySet()) {
+      final Bird bird = entry.getKey();
+      for (BirdImage image : entry.getValue()) {
+        items.put("image " + bird.getId() + "/" + image.getSlug(),
+          new Item(FuglelyderSkraper.imagePath(bird, image), FuglelyderSkraper.imageSave(bird, image)));
+      }
+    }
+    return items;
+  }
+
+  // Version 1 kept the whole URL, of whichever site it was synced from
+  private static String path(final URI uri) {
+    final URI relative = URI.create(FuglelyderSkraper.website()).relativize(uri);
+    if (!relative.isAbsolute()) {
+      return relative.toString();
+    }
+    final String path = uri.getRawPath();
+    return path.startsWith("/") ? path.substring(1) : path;
+  }
+
+  // Lookups by key in both directions, no file is looked at
+  static Diff diff(final Map<String, Item> previous, final Map<String, Item> current) {
+    final List<Change> added = new ArrayList<>();
+    final List<Change> changed = new ArrayList<>();
+    final List<Change> removed = new ArrayList<>();
+    int unchanged = 0;
+    for (Map.Entry<String, Item> entry : current.entrySet()) {
+      final Item before = previous.get(entry.getKey());
+      if (before == null) {
+        added.add(new Change(entry.getKey(), null, entry.getValue()));
+      } else if (before.equals(entry.getValue())) {
+        unchanged++;
+      } else {
+        changed.add(new Change(entry.getKey(), before, entry.getValue()));
+      }
+    }
+    for (Map.Entry<String, Item> entry : previous.entrySet()) {
+      if (!current.containsKey(entry.getKey())) {
+        removed.add(new Change(entry.getKey(), entry.getValue(), null));
+      }
+    }
+    return new Diff(added, changed, removed, unchanged);
+  }
+}
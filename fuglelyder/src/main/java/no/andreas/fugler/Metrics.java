@@ -0,0 +1,326 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters, latency histograms and phase timings for one fugl run. Requests are recorded by kind
+// (index pages or media), phases are the stretches of a run that crawl an index or download media.
+// Open phases also draw a progress line on stderr.
+final class Metrics {
+  static final String PAGE = "page";
+  static final String MEDIA = "media";
+
+  enum Outcome { OK, NOT_MODIFIED, FAILED }
+
+  // Upper bounds of the latency buckets, in seconds
+  private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+  private static final long INTERACTIVE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+  private static final long LOG_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+  private static final Metrics METRICS = new Metrics();
+
+  private final long started = System.nanoTime();
+  private final Map<String, Requests> requests = new ConcurrentHashMap<>();
+  private final List<PhaseTiming> phases = new ArrayList<>();
+  private final LongAdder bytes = new LongAdder();
+  private final List<Phase> open = new CopyOnWriteArrayList<>();
+  private final AtomicLong drawnAt = new AtomicLong(System.nanoTime());
+  private final boolean interactive = System.console() != null;
+  private volatile boolean drawn;
+
+  private Metrics() {
+  }
+
+  static Metrics get() {
+    return METRICS;
+  }
+
+  void request(final String kind, final long nanos, final long transferred, final Outcome outcome) {
+    requests(kind).record(nanos, transferred, outcome);
+    bytes.add(transferred);
+  }
+
+  void retry(final String kind) {
+    requests(kind).retries.increment();
+  }
+
+  private Requests requests(final String kind) {
+    return requests.computeIfAbsent(kind, k -> new Requests());
+  }
+
+  // Start a phase of total items whose transfers are requests of the given kind. Phases may overlap,
+  // as in a mirror; the progress line shows every open one. Closing a phase records its timing.
+  Phase phase(final String name, final String kind, final int total) {
+    final Phase phase = new Phase(name, requests(kind), total);
+    open.add(phase);
+    return phase;
+  }
+
+  final class Phase implements AutoCloseable {
+    private final String name;
+    private final Requests kind;
+    private final long start = System.nanoTime();
+    private final long bytesAtStart;
+    private final AtomicInteger total;
+    private final AtomicInteger done = new AtomicInteger();
+
+    private Phase(final String name, final Requests kind, final int total) {
+      this.name = name;
+      this.kind = kind;
+      this.bytesAtStart = kind.bytes.sum();
+      this.total = new AtomicInteger(total);
+    }
+
+    // One more item is done, whether it was fetched, skipped or failed
+    void advance() {
+      done.incrementAndGet();
+      progress(null);
+    }
+
+    // More items turned up while the phase was running
+    void grow(final int items) {
+      total.addAndGet(items);
+    }
+
+    @Override
+    public void close() {
+      synchronized (Metrics.this) {
+        phases.add(new PhaseTiming(name, System.nanoTime() - start, done.get(), kind.bytes.sum() - bytesAtStart));
+      }
+      progress(this);
+    }
+
+    private String line(final long now) {
+      final int items = done.get();
+      final int of = total.get();
+      final double seconds = (now - start) / 1e9;
+      final StringBuilder line = new StringBuilder(name).append(' ').append(items).append('/').append(of);
+      if (of > 0) {
+        line.append(String.format(Locale.ROOT, " %d%%", items * 100L / of));
+      }
+      line.append(' ').append(rate((kind.bytes.sum() - bytesAtStart) / Math.max(seconds, 1e-3)));
+      if (items > 0 && items < of) {
+        line.append(" ETA ").append(duration((long) (seconds * (of - items) / items)));
+      }
+      return line.toString();
+    }
+  }
+
+  // Redraw the progress line, at most every so often. A closing phase is drawn one last time, if the
+  // line is showing, and then dropped from it.
+  private void progress(final Phase closing) {
+    final long now = System.nanoTime();
+    final long last = drawnAt.get();
+    if (closing == null && (now - last < (interactive ? INTERACTIVE_INTERVAL : LOG_INTERVAL)
+      || !drawnAt.compareAndSet(last, now))) {
+      return;
+    }
+    synchronized (drawnAt) {
+      if (closing == null || drawn) {
+        final StringBuilder line = new StringBuilder();
+        for (Phase phase : open) {
+          line.append(line.length() == 0 ? "" : " | ").append(phase.line(now));
+        }
+        final PrintStream err = System.err;
+        err.print(interactive ? "\r" + line + "\033[K" : line + "\n");
+        err.flush();
+        drawn = true;
+      }
+      if (closing != null) {
+        open.remove(closing);
+        if (open.isEmpty() && drawn) {
+          if (interactive) {
+            System.err.println();
+          }
+          drawn = false;
+        }
+      }
+    }
+  }
+
+  // Prometheus text exposition for .prom files, a JSON summary otherwise. Written atomically so a
+  // textfile collector never picks up half a file.
+  void write(final Path out, final String command) throws IOException {
+    final String text = out.getFileName().toString().endsWith(".prom") ? prometheus() : json(command);
+    final Path parent = out.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    final Path temp = Files.createTempFile(parent, out.getFileName().toString(), ".tmp");
+    try {
+      Files.writeString(temp, text, StandardCharsets.UTF_8);
+      Files.move(temp, out, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  synchronized String json(final String command) {
+    final StringBuilder json = new StringBuilder("{\"command\":").append(Json.string(command))
+      .append(",\"seconds\":").append(seconds(System.nanoTime() - started))
+      .append(",\"bytes\":").append(bytes.sum())
+      .append(",\"phases\":[");
+    for (int i = 0; i < phases.size(); i++) {
+      final PhaseTiming phase = phases.get(i);
+      json.append(i == 0 ? "" : ",")
+        .append("{\"name\":").append(Json.string(phase.name()))
+        .append(",\"seconds\":").append(seconds(phase.nanos()))
+        .append(",\"items\":").append(phase.items())
+        .append(",\"bytes\":").append(phase.bytes())
+        .append(",\"bytes_per_second\":").append(Math.round(phase.bytes() / Math.max(phase.nanos() / 1e9, 1e-9)))
+        .append('}');
+    }
+    json.append("],\"requests\":{");
+    boolean first = true;
+    for (Map.Entry<String, Requests> entry : requests.entrySet()) {
+      final Requests kind = entry.getValue();
+      json.append(first ? "" : ",").append(Json.string(entry.getKey()))
+        .append(":{\"count\":").append(kind.count.sum())
+        .append(",\"failures\":").append(kind.failures.sum())
+        .append(",\"retries\":").append(kind.retries.sum())
+        .append(",\"not_modified\":").append(kind.notModified.sum())
+        .append(",\"bytes\":").append(kind.bytes.sum())
+        .append(",\"latency_seconds\":{\"sum\":").append(seconds(kind.nanos.sum()))
+        .append(",\"max\":").append(seconds(kind.max.get()))
+        .append(",\"p50\":").append(kind.quantile(0.5))
+        .append(",\"p90\":").append(kind.quantile(0.9))
+        .append(",\"p99\":").append(kind.quantile(0.99))
+        .append(",\"buckets\":{");
+      for (int b = 0; b <= BUCKETS.length; b++) {
+        json.append(b == 0 ? "" : ",").append('"').append(b < BUCKETS.length ? BUCKETS[b] : "+Inf").append("\":")
+          .append(kind.buckets.get(b));
+      }
+      json.append("}}}");
+      first = false;
+    }
+    return json.append("}}\n").toString();
+  }
+
+  synchronized String prometheus() {
+    final StringBuilder text = new StringBuilder();
+    counter(text, "fugl_requests_total", "HTTP requests made", kind -> kind.count);
+    counter(text, "fugl_request_failures_total", "Requests that failed", kind -> kind.failures);
+    counter(text, "fugl_request_retries_total", "Requests that were retried", kind -> kind.retries);
+    counter(text, "fugl_requests_not_modified_total", "Page requests answered with an unchanged page", kind -> kind.notModified);
+    counter(text, "fugl_transferred_bytes_total", "Response body bytes received", kind -> kind.bytes);
+    text.append("# HELP fugl_request_duration_seconds Time from sending a request to having its body\n")
+      .append("# TYPE fugl_request_duration_seconds histogram\n");
+    for (Map.Entry<String, Requests> entry : requests.entrySet()) {
+      final Requests kind = entry.getValue();
+      long cumulative = 0;
+      for (int b = 0; b <= BUCKETS.length; b++) {
+        cumulative += kind.buckets.get(b);
+        text.append("fugl_request_duration_seconds_bucket{kind=\"").append(entry.getKey()).append("\",le=\"")
+          .append(b < BUCKETS.length ? BUCKETS[b] : "+Inf").append("\"} ").append(cumulative).append('\n');
+      }
+      text.append("fugl_request_duration_seconds_sum{kind=\"").append(entry.getKey()).append("\"} ")
+        .append(seconds(kind.nanos.sum())).append('\n')
+        .append("fugl_request_duration_seconds_count{kind=\"").append(entry.getKey()).append("\"} ")
+        .append(kind.count.sum()).append('\n');
+    }
+    text.append("# HELP fugl_phase_duration_seconds Wall time of each phase of the run\n")
+      .append("# TYPE fugl_phase_duration_seconds gauge\n");
+    phases.forEach(phase -> text.append("fugl_phase_duration_seconds{phase=\"").append(phase.name()).append("\"} ")
+      .append(seconds(phase.nanos())).append('\n'));
+    text.append("# HELP fugl_phase_items Items (pages or files) handled in each phase\n")
+      .append("# TYPE fugl_phase_items gauge\n");
+    phases.forEach(phase -> text.append("fugl_phase_items{phase=\"").append(phase.name()).append("\"} ")
+      .append(phase.items()).append('\n'));
+    text.append("# HELP fugl_phase_transferred_bytes Bytes received in each phase\n")
+      .append("# TYPE fugl_phase_transferred_bytes gauge\n");
+    phases.forEach(phase -> text.append("fugl_phase_transferred_bytes{phase=\"").append(phase.name()).append("\"} ")
+      .append(phase.bytes()).append('\n'));
+    text.append("# HELP fugl_run_duration_seconds Wall time of the whole run\n")
+      .append("# TYPE fugl_run_duration_seconds gauge\n")
+      .append("fugl_run_duration_seconds ").append(seconds(System.nanoTime() - started)).append('\n');
+    return text.toString();
+  }
+
+  private interface Counter {
+    LongAdder of(Requests kind);
+  }
+
+  private void counter(final StringBuilder text, final String name, final String help, final Counter counter) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+      .append("# TYPE ").append(name).append(" counter\n");
+    for (Map.Entry<String, Requests> entry : requests.entrySet()) {
+      text.append(name).append("{kind=\"").append(entry.getKey()).append("\"} ")
+        .append(counter.of(entry.getValue()).sum()).append('\n');
+    }
+  }
+
+  private record PhaseTiming(String name, long nanos, int items, long bytes) {}
+
+  private static final class Requests {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+    void record(final long elapsed, final long transferred, final Outcome outcome) {
+      count.increment();
+      bytes.add(transferred);
+      nanos.add(elapsed);
+      max.accumulateAndGet(elapsed, Math::max);
+      if (outcome == Outcome.FAILED) {
+        failures.increment();
+      } else if (outcome == Outcome.NOT_MODIFIED) {
+        notModified.increment();
+      }
+      final double seconds = elapsed / 1e9;
+      int bucket = 0;
+      while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+    }
+
+    // Upper bound of the bucket the quantile falls in, or the slowest request past the last bucket
+    double quantile(final double q) {
+      final long total = count.sum();
+      if (total == 0) {
+        return 0;
+      }
+      long seen = 0;
+      for (int b = 0; b < BUCKETS.length; b++) {
+        seen += buckets.get(b);
+        if (seen >= Math.ceil(q * total)) {
+          return BUCKETS[b];
+        }
+      }
+      return seconds(max.get());
+    }
+  }
+
+  private static double seconds(final long nanos) {
+    return Math.round(nanos / 1e6) / 1e3;
+  }
+
+  private static String rate(final double bytesPerSecond) {
+    if (bytesPerSecond >= 1 << 20) {
+      return String.format(Locale.ROOT, "%.1f MB/s", bytesPerSecond / (1 << 20));
+    }
+    return String.format(Locale.ROOT, "%.0f kB/s", bytesPerSecond / 1024);
+  }
+
+  private static String duration(final long seconds) {
+    return seconds >= 3600 ? String.format(Locale.ROOT, "%dh%02dm", seconds / 3600, seconds / 60 % 60)
+      : String.format(Locale.ROOT, "%dm%02ds", seconds / 60, seconds % 60);
+  }
+}
@@ -0,0 +1,148 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Duration, bitrate and sample rate of an MP3 from its frame headers alone, nothing is decoded.
+// The data is read in place from its mapping: an ID3v2 tag at the start and an ID3v1 tag at the end are
+// skipped, a Xing, Info or VBRI tag in the first frame gives the frame count directly, and files
+// without one have their frame headers walked to count the samples.
+final class Mp3Scanner {
+  record Result(int durationMillis, int bitrate, int sampleRate) {}
+
+  private static final int XING = 0x58696E67;
+  private static final int INFO = 0x496E666F;
+  private static final int VBRI = 0x56425249;
+  private static final int XING_FRAMES = 0x1;
+
+  // kbit/s by bitrate index 1 to 14, for MPEG-1 layer I, II and III, then MPEG-2/2.5 layer I and layer II/III
+  private static final int[][] BITRATES = {
+    {32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+    {32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+    {32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+    {32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+    {8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+  };
+  private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+  private record Frame(boolean mpeg1, int layer, int bitrate, int sampleRate, int samples, int length, boolean mono) {
+    // Bytes between the frame header and where a Xing or Info tag would start
+    int sideInfo() {
+      return mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+    }
+  }
+
+  private Mp3Scanner() {
+  }
+
+  static Result scan(final ByteBuffer data) throws IOException {
+    int end = data.limit();
+    if (end >= 128 && data.get(end - 128) == 'T' && data.get(end - 127) == 'A' && data.get(end - 126) == 'G') {
+      end -= 128;
+    }
+    final int start = sync(data, id3v2Length(data), end);
+    if (start < 0) {
+      throw new IOException("no MPEG audio frames found");
+    }
+    final Frame first = frame(data, start);
+    final long tagged = taggedFrames(data, start, first, end);
+    final long samples = tagged > 0 ? tagged * first.samples() : walk(data, start, end);
+    if (samples == 0) {
+      throw new IOException("no complete MPEG audio frames found");
+    }
+    final long millis = samples * 1000 / first.sampleRate();
+    // Bits per millisecond is kbit/s
+    final int bitrate = millis == 0 ? first.bitrate() : (int) Math.round((end - start) * 8.0 / millis);
+    return new Result((int) Math.min(Integer.MAX_VALUE, millis), bitrate, first.sampleRate());
+  }
+
+  // Frame count from a Xing/Info tag or a VBRI tag in the first frame, or 0 when there is none
+  private static long taggedFrames(final ByteBuffer data, final int at, final Frame first, final int end) {
+    final int xing = at + 4 + first.sideInfo();
+    if (first.layer() == 3 && xing + 12 <= end) {
+      final int tag = data.getInt(xing);
+      if ((tag == XING || tag == INFO) && (data.getInt(xing + 4) & XING_FRAMES) != 0) {
+        return Integer.toUnsignedLong(data.getInt(xing + 8));
+      }
+    }
+    final int vbri = at + 4 + 32;
+    if (vbri + 18 <= end && data.getInt(vbri) == VBRI) {
+      return Integer.toUnsignedLong(data.getInt(vbri + 14));
+    }
+    return 0;
+  }
+
+  // Samples in every frame from start on, resynchronising past junk between frames
+  private static long walk(final ByteBuffer data, final int start, final int end) {
+    long samples = 0;
+    int at = start;
+    while (at >= 0 && at + 4 <= end) {
+      final Frame frame = frame(data, at);
+      if (frame == null || at + frame.length() > end) {
+        at = sync(data, at + 1, end);
+        continue;
+      }
+      samples += frame.samples();
+      at += frame.length();
+    }
+    return samples;
+  }
+
+  // First offset from at holding a frame header that is followed by another one, or -1
+  private static int sync(final ByteBuffer data, final int from, final int end) {
+    for (int at = from; at + 4 <= end; at++) {
+      if ((data.get(at) & 0xFF) != 0xFF) {
+        continue;
+      }
+      final Frame frame = frame(data, at);
+      if (frame == null) {
+        continue;
+      }
+      final int next = at + frame.length();
+      // A lone header at the very end is accepted, anywhere else a false sync is too likely
+      if (next + 4 > end || frame(data, next) != null) {
+        return at;
+      }
+    }
+    return -1;
+  }
+
+  // The frame whose header starts at the offset, or null when there is no valid header there
+  private static Frame frame(final ByteBuffer data, final int at) {
+    final int header = data.getInt(at);
+    if ((header & 0xFFE00000) != 0xFFE00000) {
+      return null;
+    }
+    final int version = (header >>> 19) & 3;
+    final int layer = 4 - ((header >>> 17) & 3);
+    final int bitrateIndex = (header >>> 12) & 0xF;
+    final int rateIndex = (header >>> 10) & 3;
+    // Reserved version, layer, sample rate and the free and bad bitrates
+    if (version == 1 || layer == 4 || rateIndex == 3 || bitrateIndex == 0 || bitrateIndex == 15) {
+      return null;
+    }
+    final boolean mpeg1 = version == 3;
+    final int bitrate = BITRATES[mpeg1 ? layer - 1 : Math.min(layer, 2) + 2][bitrateIndex - 1];
+    final int sampleRate = SAMPLE_RATES[rateIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+    final int padding = (header >>> 9) & 1;
+    final int samples = layer == 1 ? 384 : layer == 3 && !mpeg1 ? 576 : 1152;
+    final int length = layer == 1
+      ? (12 * bitrate * 1000 / sampleRate + padding) * 4
+      : samples / 8 * bitrate * 1000 / sampleRate + padding;
+    return new Frame(mpeg1, layer, bitrate, sampleRate, samples, length, ((header >>> 6) & 3) == 3);
+  }
+
+  // Bytes taken by an ID3v2 tag at the start of the data, with its footer if it has one
+  private static int id3v2Length(final ByteBuffer data) {
+    if (data.limit() < 10 || data.get(0) != 'I' || data.get(1) != 'D' || data.get(2) != '3') {
+      return 0;
+    }
+    // Syncsafe: 7 bits per byte
+    int size = 0;
+    for (int i = 6; i < 10; i++) {
+      size = size << 7 | (data.get(i) & 0x7F);
+    }
+    final boolean footer = (data.get(5) & 0x10) != 0;
+    return Math.min(data.limit(), 10 + size + (footer ? 10 : 0));
+  }
+}
@@ -0,0 +1,194 @@
+package no.andreas.fugler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+import org.jsoup.select.Evaluator;
+
+// Pulls birds, sounds and images out of fuglelyder.net pages with jsoup's StreamParser.
+// Elements are handed over as soon as they are closed and pruned right after, so the parser
+// never holds more than the element being extracted instead of the whole page tree.
+final class PageExtractor {
+  record Page(String url, byte[] body, String charset) {
+    Reader reader() {
+      return new InputStreamReader(new ByteArrayInputStream(body), charsetOf(this));
+    }
+  }
+
+  // Plain class and id checks rather than selectors: they run for every element of the page
+  private static final Predicate<Element> BIRD = element -> element.hasClass("bird-outer");
+  private static final Predicate<Element> SOUNDS = element -> element.hasClass("allsounds") && inBirdMedia(element);
+  private static final Predicate<Element> SLIDE = element -> element.hasClass("swiper-slide");
+  private static final Evaluator IMG = new Evaluator.Tag("img");
+  private static final Evaluator LINK = new Evaluator.Tag("a");
+  private static final Pattern BIRD_ID = Pattern.compile("birdmedia\\/(\\d+)\\/.+");
+  private static final Pattern META_CHARSET = Pattern.compile("charset=[\"']?([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+
+  interface Match {
+    // Return false to stop parsing the rest of the page
+    boolean accept(Element element);
+  }
+
+  private PageExtractor() {
+  }
+
+  static List<Bird> birds(final Reader page, final String url) throws IOException {
+    final List<Bird> birds = new ArrayList<>();
+    forEachMatch(page, url, BIRD, element -> {
+      birds.add(bird(element));
+      return true;
+    });
+    return birds;
+  }
+
+  // Sounds in the first #birdmedia .allsounds block. Parsing stops as soon as it has been read.
+  static List<BirdSound> sounds(final Reader page, final String url) throws IOException {
+    final List<BirdSound> sounds = new ArrayList<>();
+    final boolean[] found = {false};
+    forEachMatch(page, url, SOUNDS, element -> {
+      found[0] = true;
+      element.getElementsByTag("span").stream()
+        .filter(tab -> !tab.hasClass("heartspan"))
+        .filter(tab -> !tab.id().equalsIgnoreCase("soundshop"))
+        .map(tab -> new BirdSound(Integer.valueOf(
+            tab.id().replace("sound", "")),
+          tab.text().replace(" / ", "-")))
+        .forEach(sounds::add);
+      return false;
+    });
+    if (!found[0]) {
+      throw new IOException("no #birdmedia .allsounds block on " + url);
+    }
+    return sounds;
+  }
+
+  static List<BirdImage> images(final Bird bird, final Reader page, final String url) throws IOException {
+    final List<BirdImage> images = new ArrayList<>();
+    forEachMatch(page, url, SLIDE, slide -> {
+      final String slug = slide.selectFirst(IMG).attr("src").replace("birdmedia/" + bird.getId() + "/", "");
+      final String photographer = slide.selectFirst(LINK).text();
+      images.add(new BirdImage(slug, photographer));
+      return true;
+    });
+    return images;
+  }
+
+  static List<Bird> birds(final Page page) throws IOException {
+    return birds(page.reader(), page.url());
+  }
+
+  static List<BirdSound> sounds(final Page page) throws IOException {
+    return sounds(page.reader(), page.url());
+  }
+
+  static List<BirdImage> images(final Bird bird, final Page page) throws IOException {
+    return images(bird, page.reader(), page.url());
+  }
+
+  static Bird bird(final Element bird) {
+    final Integer id;
+    final String slug;
+    final String name;
+    final Optional<Element> img = Optional.ofNullable(bird.selectFirst(IMG));
+    if (img.isPresent()) {
+      final Element birdImg = img.get();
+      Matcher idSearch = BIRD_ID.matcher(birdImg.attr("src").strip());
+      idSearch.matches();
+      id = Integer.valueOf(idSearch.group(1));
+      name = birdImg.attr("alt");
+    } else {
+      System.err.println("image element could not be found");
+      id = null;
+      name = null;
+    }
+    final Optional<Element> birdLink = Optional.ofNullable(bird.selectFirst(LINK));
+    if (birdLink.isPresent()) {
+      final Element link = birdLink.get();
+      slug = link.attr("href").replace("/", "");
+    } else {
+      System.err.print("link element (a) could not be found");
+      slug = null;
+    }
+    // TODO: Review if should have this behaviour. Adds a bird with all null parameters if elements could not be found.
+    return new Bird(id, slug, name);
+  }
+
+  // Hand every closed element matching target to match, then drop it. Closed elements outside any
+  // match are dropped as well; only open elements and the insides of a pending match stay in the tree.
+  static void forEachMatch(final Reader page, final String url, final Predicate<Element> target, final Match match)
+  throws IOException {
+    try (StreamParser parser = new StreamParser(Parser.htmlParser()).parse(page, url)) {
+      final Iterator<Element> elements = parser.iterator();
+      while (elements.hasNext()) {
+        final Element element = elements.next();
+        if (target.test(element)) {
+          if (!match.accept(element)) {
+            parser.stop();
+            return;
+          }
+          prune(element);
+        } else if (!insideMatch(element, target)) {
+          prune(element);
+        }
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static boolean insideMatch(final Element element, final Predicate<Element> target) {
+    for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+      if (target.test(parent)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean inBirdMedia(final Element element) {
+    for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+      if (parent.id().equals("birdmedia")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void prune(final Element element) {
+    if (element.parent() != null) {
+      element.remove();
+    }
+  }
+
+  // Charset from the response, else from a meta tag near the top of the page, else UTF-8
+  static Charset charsetOf(final Page page) {
+    String name = page.charset();
+    if (name == null) {
+      final String head = new String(page.body(), 0, Math.min(page.body().length, 2048), StandardCharsets.ISO_8859_1);
+      final Matcher meta = META_CHARSET.matcher(head);
+      name = meta.find() ? meta.group(1) : null;
+    }
+    try {
+      return name == null ? StandardCharsets.UTF_8 : Charset.forName(name);
+    } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+      return StandardCharsets.UTF_8;
+    }
+  }
+}
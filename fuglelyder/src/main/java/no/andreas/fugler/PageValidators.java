@@ -0,0 +1,140 @@
+package no.andreas.fugler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// What was last seen of every scraped page: the HTTP validators to send on the next request,
+// and a hash of the body for servers that do not honour conditional requests. Saving merges the pages
+// this one changed into the file under its lock, so processes crawling at once keep each other's.
+final class PageValidators {
+  static final int MAGIC = 0x46555056;
+  static final short VERSION = 1;
+
+  record Validator(String etag, String lastModified, String hash) {}
+
+  private final Map<String, Validator> validators = new ConcurrentHashMap<>();
+  // Pages put since the last save
+  private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+  @SuppressWarnings("try")
+  static PageValidators load(final Path save) throws IOException {
+    final PageValidators loaded = new PageValidators();
+    try (CacheLock.Held held = CacheLock.of(save).shared()) {
+      loaded.validators.putAll(read(save));
+    }
+    return loaded;
+  }
+
+  private static Map<String, Validator> read(final Path save) throws IOException {
+    final Map<String, Validator> loaded = new TreeMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(save)))) {
+      if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+        System.err.println("ignoring unknown page validator file " + save + ", every page will be fetched");
+        return loaded;
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        final String url = in.readUTF();
+        loaded.put(url, new Validator(blankToNull(in.readUTF()), blankToNull(in.readUTF()), in.readUTF()));
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing fetched yet
+    }
+    return loaded;
+  }
+
+  Validator get(final String url) {
+    return validators.get(url);
+  }
+
+  void put(final String url, final Validator validator) {
+    validators.put(url, validator);
+    changed.add(url);
+  }
+
+  void putAll(final PageValidators other) {
+    validators.putAll(other.validators);
+    changed.addAll(other.validators.keySet());
+  }
+
+  // Take over the validators of the pages this has none for, such as those another shard crawled
+  int putAbsent(final PageValidators other) {
+    int added = 0;
+    for (Map.Entry<String, Validator> entry : other.validators.entrySet()) {
+      if (validators.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+        changed.add(entry.getKey());
+        added++;
+      }
+    }
+    return added;
+  }
+
+  // The pages this changed onto the file as another process may have left it
+  @SuppressWarnings("try")
+  void save(final Path save) throws IOException {
+    final List<String> urls = new ArrayList<>(changed);
+    changed.removeAll(urls);
+    try (CacheLock.Held held = CacheLock.of(save).exclusive()) {
+      final Map<String, Validator> sorted = read(save);
+      urls.forEach(url -> sorted.put(url, validators.get(url)));
+      write(save, sorted);
+    } catch (IOException | RuntimeException e) {
+      changed.addAll(urls);
+      throw e;
+    }
+  }
+
+  private static void write(final Path save, final Map<String, Validator> sorted) throws IOException {
+    final Path temp = Files.createTempFile(save.toAbsolutePath().getParent(), save.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, Validator> entry : sorted.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeUTF(nullToBlank(entry.getValue().etag()));
+          out.writeUTF(nullToBlank(entry.getValue().lastModified()));
+          out.writeUTF(entry.getValue().hash());
+        }
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  static String hash(final byte[] body) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required to be available", e);
+    }
+  }
+
+  private static String blankToNull(final String value) {
+    return value.isEmpty() ? null : value;
+  }
+
+  private static String nullToBlank(final String value) {
+    return value == null ? "" : value;
+  }
+}
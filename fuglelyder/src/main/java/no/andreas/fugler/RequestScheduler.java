@@ -0,0 +1,188 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+// Paces every request to fuglelyder.net: a token bucket caps the request rate, an AIMD limit caps
+// the requests in flight, halving on 429/503 and creeping back up on success, and Retry-After
+// pauses everyone. Failed attempts are retried with jittered exponential backoff.
+final class RequestScheduler {
+  record Limits(double rate, int burst, int maxConcurrency, int retries) {
+    static final Limits DEFAULT = new Limits(10, 10, 8, 4);
+
+    Limits {
+      if (rate <= 0 || burst < 1 || maxConcurrency < 1 || retries < 0) {
+        throw new IllegalArgumentException("rate, burst and concurrency must be positive and retries at least 0");
+      }
+    }
+  }
+
+  interface Attempt<T> {
+    T send() throws IOException, InterruptedException;
+  }
+
+  private static final long BACKOFF_BASE = TimeUnit.MILLISECONDS.toNanos(500);
+  private static final long BACKOFF_CAP = TimeUnit.SECONDS.toNanos(30);
+  private static final long RETRY_AFTER_CAP = TimeUnit.MINUTES.toNanos(5);
+  // Throttling answers that arrive together count as one signal, so a burst does not collapse the limit
+  private static final long DECREASE_GAP = TimeUnit.SECONDS.toNanos(1);
+
+  private static RequestScheduler shared;
+
+  private final Limits limits;
+  private double tokens;
+  private long refilledAt = System.nanoTime();
+  private long pausedUntil = refilledAt;
+  private double limit;
+  private int inFlight;
+  private long decreasedAt = refilledAt - DECREASE_GAP;
+
+  RequestScheduler(final Limits limits) {
+    this.limits = limits;
+    this.tokens = limits.burst();
+    this.limit = limits.maxConcurrency();
+  }
+
+  // The scheduler every request of this process goes through
+  static synchronized RequestScheduler get() {
+    if (shared == null) {
+      shared = new RequestScheduler(Limits.DEFAULT);
+    }
+    return shared;
+  }
+
+  static synchronized void configure(final Limits limits) {
+    shared = new RequestScheduler(limits);
+  }
+
+  Limits limits() {
+    return limits;
+  }
+
+  synchronized int concurrencyLimit() {
+    return (int) limit;
+  }
+
+  // Send an attempt once a token and a slot are free, retrying connection failures, 429 and 5xx.
+  // The last response is returned as is once the retries are used up, so callers still see its status.
+  // Failed and retried attempts are counted here; recording the returned response is up to the caller.
+  <T> T send(final String kind, final Attempt<T> attempt, final ToIntFunction<T> status,
+  final Function<T, String> retryAfter) throws IOException {
+    try {
+      for (int retry = 0; ; retry++) {
+        awaitTurn();
+        final long start = System.nanoTime();
+        final T response;
+        try {
+          response = attempt.send();
+        } catch (IOException e) {
+          release(0);
+          Metrics.get().request(kind, System.nanoTime() - start, 0, Metrics.Outcome.FAILED);
+          if (e instanceof InterruptedIOException || retry >= limits.retries()) {
+            throw e;
+          }
+          Metrics.get().retry(kind);
+          TimeUnit.NANOSECONDS.sleep(backoff(retry));
+          continue;
+        } catch (InterruptedException | RuntimeException e) {
+          release(0);
+          throw e;
+        }
+        final int code = status.applyAsInt(response);
+        final boolean throttled = code == 429 || code == 503;
+        release(code);
+        if (!retryable(code) || retry >= limits.retries()) {
+          return response;
+        }
+        final long wait = Math.max(backoff(retry), throttled ? retryAfter(retryAfter.apply(response)) : 0);
+        if (throttled) {
+          pause(wait);
+        }
+        Metrics.get().request(kind, System.nanoTime() - start, 0, Metrics.Outcome.FAILED);
+        Metrics.get().retry(kind);
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting to send a request");
+    }
+  }
+
+  static boolean retryable(final int status) {
+    return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+  }
+
+  // Block until the bucket has a token, any Retry-After pause is over and the limit has room
+  private void awaitTurn() throws InterruptedException {
+    final long wait;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      tokens = Math.min(limits.burst(), tokens + (now - refilledAt) / 1e9 * limits.rate());
+      refilledAt = now;
+      // Tokens may go negative: each waiting caller has reserved its place in line
+      tokens -= 1;
+      wait = Math.max(tokens >= 0 ? 0 : (long) (-tokens / limits.rate() * 1e9), pausedUntil - now);
+    }
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+    synchronized (this) {
+      while (inFlight >= (int) limit) {
+        wait();
+      }
+      inFlight++;
+    }
+  }
+
+  // Give the slot back and adjust the limit to the answer; status 0 means no answer at all
+  private synchronized void release(final int status) {
+    inFlight--;
+    final long now = System.nanoTime();
+    if (status == 429 || status == 503) {
+      if (now - decreasedAt >= DECREASE_GAP) {
+        limit = Math.max(1, limit / 2);
+        decreasedAt = now;
+      }
+    } else if (status > 0 && status < 500) {
+      limit = Math.min(limits.maxConcurrency(), limit + 1 / limit);
+    }
+    notifyAll();
+  }
+
+  private synchronized void pause(final long nanos) {
+    pausedUntil = Math.max(pausedUntil, System.nanoTime() + nanos);
+  }
+
+  // Full jitter: anywhere between nothing and the exponential ceiling for this retry
+  static long backoff(final int retry) {
+    final long ceiling = Math.min(BACKOFF_CAP, BACKOFF_BASE << Math.min(retry, 16));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  // Retry-After as delay seconds or an HTTP date, 0 when missing or unreadable
+  static long retryAfter(final String header) {
+    if (header == null || header.isBlank()) {
+      return 0;
+    }
+    long nanos;
+    try {
+      nanos = TimeUnit.SECONDS.toNanos(Long.parseLong(header.strip()));
+    } catch (NumberFormatException e) {
+      try {
+        nanos = Duration.between(ZonedDateTime.now(),
+          ZonedDateTime.parse(header.strip(), DateTimeFormatter.RFC_1123_DATE_TIME)).toNanos();
+      } catch (DateTimeParseException | ArithmeticException unreadable) {
+        return 0;
+      }
+    }
+    return Math.max(0, Math.min(RETRY_AFTER_CAP, nanos));
+  }
+}
@@ -0,0 +1,242 @@
+package no.andreas.fugler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Trigram index over bird names and slugs, kept next to the catalog. Names and queries are folded the way
+// the site folds names into slugs, æ to ae, ø to o and å to a, with other accents and case dropped, so
+// "Kjøttmeis", "kjottmeis" and "KJOTTMEIS" all find the same bird.
+final class SearchIndex {
+  static final int MAGIC = 0x46554753;
+  static final short VERSION = 1;
+
+  record Hit(Bird bird, double score) {}
+
+  private record Doc(Bird bird, String name, String slug, Set<String> grams) {}
+
+  // Docs and postings are keyed by bird id, so an update only touches the birds that changed
+  private final Map<Integer, Doc> docs = new HashMap<>();
+  private final Map<String, int[]> postings = new HashMap<>();
+  private long fingerprint;
+
+  private SearchIndex() {
+  }
+
+  // Case, accents and punctuation folded away, with the Norwegian letters spelled like in the slugs
+  static String normalize(final String text) {
+    final String lower = text.toLowerCase(Locale.ROOT)
+      .replace("æ", "ae")
+      .replace("ø", "o")
+      .replace("å", "a");
+    final String stripped = Normalizer.normalize(lower, Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+    return stripped.replaceAll("[^\\p{Alnum}]+", " ").strip();
+  }
+
+  // Trigrams of every word, padded so one and two letter queries still match the start of a word
+  static Set<String> trigrams(final String normalized) {
+    final Set<String> grams = new LinkedHashSet<>();
+    for (String word : normalized.split(" ")) {
+      if (word.isEmpty()) {
+        continue;
+      }
+      final String padded = "  " + word + " ";
+      for (int i = 0; i + 3 <= padded.length(); i++) {
+        grams.add(padded.substring(i, i + 3));
+      }
+    }
+    return grams;
+  }
+
+  // Hash of what the index was built from, to tell whether the catalog moved on since
+  static long fingerprint(final List<Bird> birds) {
+    long hash = 1125899906842597L;
+    for (Bird bird : birds) {
+      hash = 31 * hash + Objects.hash(bird.getId(), bird.getSlug(), bird.getName());
+    }
+    return hash;
+  }
+
+  // The saved index brought up to date with the given birds. Only birds that were added, removed or
+  // renamed since the index was saved are re-indexed, and the file is only rewritten if something changed.
+  // It is not locked: the file is derived from the birds alone and replaced whole, so a process that loses
+  // its write to another finds the index out of date by its fingerprint and rebuilds it.
+  static SearchIndex update(final Path save, final List<Bird> birds) throws IOException {
+    final SearchIndex index = load(save);
+    final long current = fingerprint(birds);
+    if (index.fingerprint == current && !index.docs.isEmpty()) {
+      return index;
+    }
+    final Map<Integer, Bird> wanted = new HashMap<>();
+    for (Bird bird : birds) {
+      if (bird.getId() != null) {
+        wanted.putIfAbsent(bird.getId(), bird);
+      }
+    }
+    for (Doc doc : List.copyOf(index.docs.values())) {
+      if (!doc.bird().equals(wanted.get(doc.bird().getId()))) {
+        index.remove(doc);
+      }
+    }
+    for (Bird bird : wanted.values()) {
+      if (!index.docs.containsKey(bird.getId())) {
+        index.add(bird);
+      }
+    }
+    index.fingerprint = current;
+    index.save(save);
+    return index;
+  }
+
+  int size() {
+    return docs.size();
+  }
+
+  // Birds ranked by trigram overlap with the query, with exact and prefix matches first
+  List<Hit> search(final String query, final int limit) {
+    final String normalized = normalize(query);
+    if (normalized.isEmpty()) {
+      return List.of();
+    }
+    final Set<String> grams = trigrams(normalized);
+    final Map<Integer, Integer> shared = new HashMap<>();
+    for (String gram : grams) {
+      for (int id : postings.getOrDefault(gram, new int[0])) {
+        shared.merge(id, 1, Integer::sum);
+      }
+    }
+    final List<Hit> hits = new ArrayList<>();
+    for (Map.Entry<Integer, Integer> match : shared.entrySet()) {
+      final Doc doc = docs.get(match.getKey());
+      final int common = match.getValue();
+      double score = (double) common / (grams.size() + doc.grams().size() - common);
+      if (doc.name().equals(normalized) || doc.slug().equals(normalized.replace(" ", ""))) {
+        score += 1;
+      } else if (doc.name().startsWith(normalized) || doc.slug().startsWith(normalized.replace(" ", ""))) {
+        score += 0.5;
+      } else if (doc.name().contains(normalized)) {
+        score += 0.25;
+      } else if ((double) common / grams.size() < 0.5) {
+        // Less than half the query is in this bird at all
+        continue;
+      }
+      hits.add(new Hit(doc.bird(), score));
+    }
+    hits.sort(Comparator.comparingDouble(Hit::score).reversed()
+      .thenComparing(hit -> hit.bird().getName(), Comparator.nullsLast(Comparator.naturalOrder())));
+    return hits.size() > limit ? List.copyOf(hits.subList(0, limit)) : hits;
+  }
+
+  private void add(final Bird bird) {
+    final String name = bird.getName() == null ? "" : normalize(bird.getName());
+    final String slug = bird.getSlug() == null ? "" : normalize(bird.getSlug());
+    final Set<String> grams = trigrams(name);
+    grams.addAll(trigrams(slug));
+    docs.put(bird.getId(), new Doc(bird, name, slug.replace(" ", ""), grams));
+    for (String gram : grams) {
+      final int[] ids = postings.getOrDefault(gram, new int[0]);
+      final int[] grown = Arrays.copyOf(ids, ids.length + 1);
+      grown[ids.length] = bird.getId();
+      postings.put(gram, grown);
+    }
+  }
+
+  private void remove(final Doc doc) {
+    final int id = doc.bird().getId();
+    docs.remove(id);
+    for (String gram : doc.grams()) {
+      final int[] ids = Arrays.stream(postings.get(gram)).filter(other -> other != id).toArray();
+      if (ids.length == 0) {
+        postings.remove(gram);
+      } else {
+        postings.put(gram, ids);
+      }
+    }
+  }
+
+  static SearchIndex load(final Path save) throws IOException {
+    final SearchIndex index = new SearchIndex();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(save)))) {
+      if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+        System.err.println("ignoring unknown search index " + save + ", it will be rebuilt");
+        return index;
+      }
+      index.fingerprint = in.readLong();
+      final int docCount = in.readInt();
+      for (int i = 0; i < docCount; i++) {
+        final Bird bird = new Bird(in.readInt(), blankToNull(in.readUTF()), blankToNull(in.readUTF()));
+        final String name = in.readUTF();
+        final String slug = in.readUTF();
+        index.docs.put(bird.getId(), new Doc(bird, name, slug, new LinkedHashSet<>()));
+      }
+      final int gramCount = in.readInt();
+      for (int i = 0; i < gramCount; i++) {
+        final String gram = in.readUTF();
+        final int[] ids = new int[in.readInt()];
+        for (int j = 0; j < ids.length; j++) {
+          ids[j] = in.readInt();
+          index.docs.get(ids[j]).grams().add(gram);
+        }
+        index.postings.put(gram, ids);
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing indexed yet
+    }
+    return index;
+  }
+
+  void save(final Path save) throws IOException {
+    final Path temp = Files.createTempFile(save.toAbsolutePath().getParent(), save.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(fingerprint);
+        out.writeInt(docs.size());
+        for (Doc doc : new TreeMap<>(docs).values()) {
+          out.writeInt(doc.bird().getId());
+          out.writeUTF(Objects.toString(doc.bird().getSlug(), ""));
+          out.writeUTF(Objects.toString(doc.bird().getName(), ""));
+          out.writeUTF(doc.name());
+          out.writeUTF(doc.slug());
+        }
+        final Map<String, int[]> sorted = new TreeMap<>(postings);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, int[]> posting : sorted.entrySet()) {
+          out.writeUTF(posting.getKey());
+          out.writeInt(posting.getValue().length);
+          for (int id : posting.getValue()) {
+            out.writeInt(id);
+          }
+        }
+      }
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static String blankToNull(final String value) {
+    return value.isEmpty() ? null : value;
+  }
+}
@@ -0,0 +1,52 @@
+package no.andreas.fugler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// One of count slices of the bird index, written "index/count" from 1/count to count/count. A bird
+// belongs to the slice its id falls in modulo count, so every machine given the same count splits the
+// birds the same way, whatever order it scraped them in. Birds without an id all go to the first shard.
+record Shard(int index, int count) {
+  static final Shard ALL = new Shard(1, 1);
+
+  Shard {
+    if (count < 1 || index < 1 || index > count) {
+      throw new IllegalArgumentException("a shard is i/n with 1 <= i <= n, not " + index + "/" + count);
+    }
+  }
+
+  static Shard parse(final String value) {
+    final int slash = value.indexOf('/');
+    try {
+      if (slash > 0) {
+        return new Shard(Integer.parseInt(value.substring(0, slash).trim()), Integer.parseInt(value.substring(slash + 1).trim()));
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("'" + value + "' is not a shard like 1/4");
+  }
+
+  boolean contains(final Bird bird) {
+    return count == 1 || Math.floorMod(bird.getId() == null ? 0 : bird.getId(), count) == index - 1;
+  }
+
+  // The birds of the index that belong to this shard, in index order
+  List<Bird> of(final List<Bird> birdIndex) {
+    if (count == 1) {
+      return birdIndex;
+    }
+    final List<Bird> birds = new ArrayList<>(birdIndex.size() / count + 1);
+    for (Bird bird : birdIndex) {
+      if (contains(bird)) {
+        birds.add(bird);
+      }
+    }
+    return birds;
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+}
@@ -0,0 +1,182 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Brings the caches of shards, crawled and downloaded with --shard on other machines, into this one.
+// Catalog entries and media that only a shard has are taken over. Where this cache already has a bird,
+// an entry or a file and the shard's differs, that is a conflict: it is reported and this cache's copy kept.
+// Shards of one split never overlap, so conflicts mean the shards crawled at different times or a
+// file got damaged on the way.
+final class ShardMerge {
+  record Conflict(Path shard, String what, String detail) {
+    @Override
+    public String toString() {
+      return what + ": " + detail + " in " + shard;
+    }
+  }
+
+  record Report(int birds, int sounds, int images, int copied, long bytes, int identical, List<Conflict> conflicts) {}
+
+  record Merged(CatalogFile.Contents contents, Report report) {}
+
+  private final Path shard;
+  private final List<Conflict> conflicts = new ArrayList<>();
+  private int birds;
+  private int sounds;
+  private int images;
+
+  private ShardMerge(final Path shard) {
+    this.shard = shard;
+  }
+
+  // The birds/ directory of a shard, given either it or the directory the shard ran in
+  static Path root(final Path shard) {
+    final Path birds = shard.resolve(FuglelyderSkraper.CATALOG_SAVE.getParent());
+    return Files.isDirectory(birds) ? birds : shard;
+  }
+
+  // The shard's catalog merged into this one's: birds by id, then the sound and image entries per bird
+  static Merged catalog(final Path shard, final CatalogFile.Contents ours, final CatalogFile.Contents theirs) {
+    final ShardMerge merge = new ShardMerge(shard);
+    final CatalogFile.Contents contents = merge.contents(ours, theirs);
+    return new Merged(contents, new Report(merge.birds, merge.sounds, merge.images, 0, 0, 0, List.copyOf(merge.conflicts)));
+  }
+
+  private CatalogFile.Contents contents(final CatalogFile.Contents ours, final CatalogFile.Contents theirs) {
+    final Map<Integer, Bird> byId = new HashMap<>();
+    for (Bird bird : ours.birds()) {
+      byId.putIfAbsent(bird.getId(), bird);
+    }
+    final List<Bird> mergedBirds = new ArrayList<>(ours.birds());
+    // Their birds mapped to ours, left out where the two disagree about the bird
+    final Map<Bird, Bird> same = new HashMap<>();
+    for (Bird bird : theirs.birds()) {
+      final Bird known = byId.get(bird.getId());
+      if (known == null) {
+        byId.put(bird.getId(), bird);
+        mergedBirds.add(bird);
+        same.put(bird, bird);
+        birds++;
+      } else if (known.equals(bird)) {
+        same.put(bird, known);
+      } else {
+        conflicts.add(new Conflict(shard, "bird " + bird.getId(),
+          known.getSlug() + " (" + known.getName() + ") here, " + bird.getSlug() + " (" + bird.getName() + ")"));
+      }
+    }
+    final Map<Bird, List<BirdSound>> mergedSounds = new HashMap<>(ours.sounds());
+    sounds = entries("sounds", theirs.sounds(), same, mergedSounds);
+    final Map<Bird, List<BirdImage>> mergedImages = new HashMap<>(ours.images());
+    images = entries("images", theirs.images(), same, mergedImages);
+    return new CatalogFile.Contents(mergedBirds, ours.sounds(), ours.images()).withSounds(mergedSounds)
+      .withImages(mergedImages);
+  }
+
+  private <T> int entries(final String kind, final Map<Bird, List<T>> theirs, final Map<Bird, Bird> same,
+  final Map<Bird, List<T>> merged) {
+    int taken = 0;
+    for (Map.Entry<Bird, List<T>> entry : theirs.entrySet()) {
+      final Bird bird = same.get(entry.getKey());
+      if (bird == null) {
+        continue;
+      }
+      final List<T> ours = merged.get(bird);
+      if (ours == null) {
+        merged.put(bird, entry.getValue());
+        taken++;
+      } else if (!ours.equals(entry.getValue())) {
+        conflicts.add(new Conflict(shard, kind + " of " + bird.getSlug(),
+          ours.size() + " entries here, " + entry.getValue().size() + " differing"));
+      }
+    }
+    return taken;
+  }
+
+  // Copy the media the shard has and this cache lacks, loose or packed on either side. Files both have
+  // are compared by length and SHA-256, using the checksum recorded here when it still fits the file.
+  static Report media(final Path shard, final List<Path> directories, final Metrics.Phase phase) throws IOException {
+    final ShardMerge merge = new ShardMerge(shard);
+    final Path root = root(shard);
+    final List<Path> theirDirectories = new ArrayList<>();
+    for (Path directory : directories) {
+      theirDirectories.add(root.resolve(directory.getFileName()));
+    }
+    final MediaStore theirs = MediaStore.load(root.resolve(FuglelyderSkraper.PACK_SAVES.getFileName()), theirDirectories);
+    final MediaStore ours = MediaStore.get();
+    final MediaChecksums checksums = MediaChecksums.get();
+    int copied = 0;
+    int identical = 0;
+    long bytes = 0;
+    for (int i = 0; i < directories.size(); i++) {
+      final List<Path> files = theirs.files(theirDirectories.get(i));
+      phase.grow(files.size());
+      Files.createDirectories(directories.get(i));
+      for (Path file : files) {
+        final Path save = directories.get(i).resolve(file.getFileName().toString());
+        final MediaStore.Location location = theirs.locate(file);
+        final ByteBuffer data = theirs.map(file);
+        try (CacheLock.Held claim = CacheLock.of(directories.get(i)).claim(save.getFileName().toString())) {
+          if (claim == null) {
+            merge.conflicts.add(new Conflict(shard, save.toString(), "being downloaded by another fugl process"));
+          } else if (ours.exists(save)) {
+            if (merge.same(ours, checksums, save, data)) {
+              identical++;
+            }
+          } else {
+            copy(data, save, location.modified());
+            checksums.record(save, data.remaining(), MediaChecksums.hash(data), Files.getLastModifiedTime(save).toMillis());
+            ours.added(save, data.remaining());
+            copied++;
+            bytes += data.remaining();
+          }
+        }
+        phase.advance();
+      }
+    }
+    return new Report(0, 0, 0, copied, bytes, identical, List.copyOf(merge.conflicts));
+  }
+
+  private boolean same(final MediaStore ours, final MediaChecksums checksums, final Path save, final ByteBuffer data)
+  throws IOException {
+    final MediaStore.Location location = ours.locate(save);
+    final MediaChecksums.Recorded recorded = checksums.get(save);
+    final String hash = MediaChecksums.hash(data);
+    final String ourHash = recorded != null && recorded.length() == location.length()
+      && recorded.verified() == location.modified() ? recorded.hash() : MediaChecksums.hash(ours.map(save));
+    if (location.length() == data.remaining() && ourHash.equals(hash)) {
+      return true;
+    }
+    conflicts.add(new Conflict(shard, save.toString(), location.length() + " bytes here, " + data.remaining()
+      + " bytes with SHA-256 " + hash.substring(0, 12) + " where " + ourHash.substring(0, 12) + " is here"));
+    return false;
+  }
+
+  // Written next to the save and renamed into place with the shard's mtime, like a finished download
+  private static void copy(final ByteBuffer data, final Path save, final long modified) throws IOException {
+    final Path temp = Files.createTempFile(save.toAbsolutePath().getParent(), save.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        final ByteBuffer remaining = data.duplicate();
+        while (remaining.hasRemaining()) {
+          out.write(remaining);
+        }
+        out.force(true);
+      }
+      Files.setLastModifiedTime(temp, FileTime.fromMillis(modified));
+      Files.move(temp, save, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
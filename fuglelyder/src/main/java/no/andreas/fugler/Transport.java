@@ -0,0 +1,106 @@
+package no.andreas.fugler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+// The one HTTP client of the process, shared by page fetches and media transfers so a run keeps a few
+// warm, reused connections. HTTP/2 is negotiated where the server offers it, HTML is asked for compressed.
+final class Transport {
+  static final String USER_AGENT = "fugl/1.0 (+https://github.com/AndreasTveitdalG/bird)";
+
+  record Settings(Duration connectTimeout, Duration requestTimeout) {
+    static final Settings DEFAULT = new Settings(Duration.ofSeconds(10), Duration.ofSeconds(60));
+
+    Settings {
+      if (connectTimeout.isNegative() || connectTimeout.isZero() || requestTimeout.isNegative() || requestTimeout.isZero()) {
+        throw new IllegalArgumentException("timeouts must be positive");
+      }
+    }
+  }
+
+  // A page response with its body already decompressed; received is what came over the wire
+  record Response(int status, HttpHeaders headers, byte[] body, long received, String charset) {
+    String header(final String name) {
+      return headers.firstValue(name).orElse(null);
+    }
+  }
+
+  private static final Pattern CHARSET = Pattern.compile("charset=\"?([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+
+  private static Transport shared;
+
+  private final Settings settings;
+  private final HttpClient client;
+
+  Transport(final Settings settings) {
+    this.settings = settings;
+    this.client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_2)
+      .followRedirects(HttpClient.Redirect.NORMAL)
+      .connectTimeout(settings.connectTimeout())
+      .build();
+  }
+
+  static synchronized Transport get() {
+    if (shared == null) {
+      shared = new Transport(Settings.DEFAULT);
+    }
+    return shared;
+  }
+
+  // Replace the shared transport; only meant to be called before the first request of a run
+  static synchronized void configure(final Settings settings) {
+    shared = new Transport(settings);
+  }
+
+  HttpClient client() {
+    return client;
+  }
+
+  // A request carrying the timeout and user agent every fugl request should have
+  HttpRequest.Builder request(final URI uri) {
+    return HttpRequest.newBuilder(uri)
+      .timeout(settings.requestTimeout())
+      .header("User-Agent", USER_AGENT);
+  }
+
+  // GET a page, asking for it compressed. Error bodies are not kept.
+  Response page(final HttpRequest.Builder request) throws IOException, InterruptedException {
+    final HttpResponse<byte[]> response = client.send(
+      request.header("Accept-Encoding", "gzip, deflate").GET().build(),
+      HttpResponse.BodyHandlers.ofByteArray());
+    final String contentType = response.headers().firstValue("Content-Type").orElse("");
+    final Matcher charset = CHARSET.matcher(contentType);
+    final byte[] body = response.statusCode() / 100 == 2
+      ? decode(response.body(), response.headers().firstValue("Content-Encoding").orElse(""))
+      : new byte[0];
+    return new Response(response.statusCode(), response.headers(), body, response.body().length,
+      charset.find() ? charset.group(1) : null);
+  }
+
+  private static byte[] decode(final byte[] body, final String encoding) throws IOException {
+    final InputStream in;
+    switch (encoding.strip().toLowerCase(Locale.ROOT)) {
+      case "gzip", "x-gzip" -> in = new GZIPInputStream(new ByteArrayInputStream(body));
+      case "deflate" -> in = new InflaterInputStream(new ByteArrayInputStream(body));
+      default -> {
+        return body;
+      }
+    }
+    try (in) {
+      return in.readAllBytes();
+    }
+  }
+}
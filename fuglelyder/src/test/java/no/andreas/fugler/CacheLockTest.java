@@ -0,0 +1,76 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CacheLockTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void claimsAnItemOnceUntilReleased() throws IOException {
+        final CacheLock lock = CacheLock.of(dir.resolve("sounds"));
+        assertSame(lock, CacheLock.of(dir.resolve("sounds")));
+        try (CacheLock.Held sang = lock.claim("kjottmeis4101 Sang.mp3")) {
+            assertNotNull(sang);
+            assertNull(lock.claim("kjottmeis4101 Sang.mp3"));
+            try (CacheLock.Held tigging = lock.claim("kjottmeis4104 Tigging.mp3")) {
+                assertNotNull(tigging);
+            }
+        }
+        try (CacheLock.Held again = lock.claim("kjottmeis4101 Sang.mp3")) {
+            assertNotNull(again);
+        }
+        assertTrue(Files.exists(dir.resolve("sounds.lock")));
+    }
+
+    @Test
+    public void writersWaitForReaders() throws Exception {
+        final CacheLock lock = CacheLock.of(dir.resolve("catalog.bin"));
+        final CompletableFuture<Void> written;
+        try (CacheLock.Held reading = lock.shared()) {
+            // Readers share
+            CompletableFuture.runAsync(() -> {
+                try (CacheLock.Held alsoReading = lock.shared()) {
+                    // Let go right away
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).get(5, TimeUnit.SECONDS);
+            written = CompletableFuture.runAsync(() -> {
+                try (CacheLock.Held writing = lock.exclusive(); CacheLock.Held reentrant = lock.exclusive();
+                    CacheLock.Held alsoReading = lock.shared()) {
+                    // Reentrant, and a writer may read
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            assertTimesOut(written);
+        }
+        written.get(5, TimeUnit.SECONDS);
+        assertFalse(written.isCompletedExceptionally());
+    }
+
+    private static void assertTimesOut(final CompletableFuture<Void> future) throws InterruptedException, ExecutionException {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            throw new AssertionError("the writer did not wait for the reader");
+        } catch (TimeoutException e) {
+            // Still waiting, as it should
+        }
+    }
+}
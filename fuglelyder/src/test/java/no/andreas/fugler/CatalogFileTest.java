@@ -0,0 +1,75 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CatalogFileTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void roundTripsBirdsSoundsAndImages() throws IOException {
+        final Bird kjøttmeis = new Bird(12, "kjottmeis", "Kjøttmeis");
+        final Bird ukjent = new Bird(null, null, null);
+        final Bird gråspurv = new Bird(40, "graspurv", "Gråspurv");
+        final Path save = dir.resolve("catalog.bin");
+        CatalogFile.write(save, new CatalogFile.Contents(
+            List.of(kjøttmeis, ukjent, gråspurv),
+            Map.of(kjøttmeis, List.of(new BirdSound(1, "sang"), new BirdSound(2, "lokkelyd"))),
+            Map.of(kjøttmeis, List.of(new BirdImage("12_1.jpg", "Ola Nordmann")), gråspurv, List.of())));
+
+        final CatalogFile catalog = CatalogFile.open(save);
+        assertEquals(3, catalog.birdCount());
+        assertEquals("Kjøttmeis", catalog.bird(0).getName());
+        assertNull(catalog.bird(1).getId());
+        assertNull(catalog.bird(1).getSlug());
+        assertEquals(2, catalog.rowOf(40));
+        assertEquals(-1, catalog.rowOf(99));
+
+        assertEquals("[1 sang, 2 lokkelyd]", catalog.sounds(0).toString());
+        assertEquals("Ola Nordmann", catalog.images(0).get(0).getName());
+        assertNull(catalog.sounds(2));
+        assertTrue(catalog.hasImages(2));
+        assertTrue(catalog.images(2).isEmpty());
+        assertFalse(catalog.hasSounds(1));
+    }
+
+    @Test
+    public void keepsSoundAnalysisAcrossRecrawls() throws IOException {
+        final Bird kjøttmeis = new Bird(12, "kjottmeis", "Kjøttmeis");
+        final BirdSound sang = new BirdSound(1, "sang");
+        sang.setAnalysis(2612, 128, 44100, 41700L, 1700000000000L);
+        final Path save = dir.resolve("catalog.bin");
+        CatalogFile.write(save, new CatalogFile.Contents(List.of(kjøttmeis),
+            Map.of(kjøttmeis, List.of(sang, new BirdSound(2, "lokkelyd"))), Map.of()));
+
+        final List<BirdSound> stored = CatalogFile.open(save).sounds(0);
+        assertEquals(2612, stored.get(0).getDurationMillis());
+        assertEquals(44100, stored.get(0).getSampleRate());
+        assertEquals(1700000000000L, stored.get(0).getModified());
+        assertFalse(stored.get(1).isAnalyzed());
+
+        final CatalogFile.Contents recrawled = CatalogFile.open(save).contents()
+            .withSounds(Map.of(kjøttmeis, List.of(new BirdSound(1, "sang"), new BirdSound(3, "tigging"))));
+        assertEquals(41700L, recrawled.sounds().get(kjøttmeis).get(0).getSize());
+        assertFalse(recrawled.sounds().get(kjøttmeis).get(1).isAnalyzed());
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotCatalogs() throws IOException {
+        final Path save = Files.write(dir.resolve("birdIndex.ser"), new byte[] {(byte) 0xAC, (byte) 0xED, 0, 5});
+        assertThrows(IOException.class, () -> CatalogFile.open(save));
+    }
+}
@@ -0,0 +1,92 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CatalogServerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void parsesSingleByteRanges() {
+        assertArrayEquals(new long[] {0, 99}, CatalogServer.range("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {500, 999}, CatalogServer.range("bytes=500-", 1000));
+        assertArrayEquals(new long[] {900, 999}, CatalogServer.range("bytes=-100", 1000));
+        // Clamped to the file
+        assertArrayEquals(new long[] {990, 999}, CatalogServer.range("bytes=990-2000", 1000));
+        assertArrayEquals(new long[] {0, 999}, CatalogServer.range("bytes=-5000", 1000));
+        // Unsatisfiable
+        assertNull(CatalogServer.range("bytes=1000-", 1000));
+        assertNull(CatalogServer.range("bytes=-0", 1000));
+        assertNull(CatalogServer.range("bytes=-10", 0));
+        // Ignored, the whole file is sent
+        assertArrayEquals(new long[0], CatalogServer.range("bytes=20-10", 1000));
+        assertArrayEquals(new long[0], CatalogServer.range("bytes=-", 1000));
+        assertArrayEquals(new long[0], CatalogServer.range("bytes=0-1,5-9", 1000));
+        assertArrayEquals(new long[0], CatalogServer.range("items=0-1", 1000));
+        assertArrayEquals(new long[0], CatalogServer.range("bytes=99999999999999999999-", 1000));
+    }
+
+    @Test
+    public void answersRangeRequestsForCachedMedia() throws IOException, InterruptedException {
+        final byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        final Path sang = Files.write(dir.resolve("kjottmeis4101 Sang.mp3"), bytes);
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> media(exchange, sang));
+        server.start();
+        try {
+            final HttpClient client = HttpClient.newHttpClient();
+            final URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/sang.mp3");
+
+            final HttpResponse<byte[]> whole = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, whole.statusCode());
+            assertArrayEquals(bytes, whole.body());
+            assertEquals("bytes", whole.headers().firstValue("Accept-Ranges").orElse(null));
+
+            final HttpResponse<byte[]> part = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=100-199").build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(206, part.statusCode());
+            assertEquals("bytes 100-199/1000", part.headers().firstValue("Content-Range").orElse(null));
+            assertArrayEquals(Arrays.copyOfRange(bytes, 100, 200), part.body());
+
+            final HttpResponse<byte[]> tail = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=-10").build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(206, tail.statusCode());
+            assertArrayEquals(Arrays.copyOfRange(bytes, 990, 1000), tail.body());
+
+            final HttpResponse<String> beyond = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=1000-").build(),
+                HttpResponse.BodyHandlers.ofString());
+            assertEquals(416, beyond.statusCode());
+            assertEquals("bytes */1000", beyond.headers().firstValue("Content-Range").orElse(null));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void media(final HttpExchange exchange, final Path save) throws IOException {
+        try (exchange) {
+            CatalogServer.sendMedia(exchange, save, "audio/mpeg");
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package no.andreas.fugler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// Writes a birds/ cache from the saved pages into the given directory, for the CDS archive to be trained
+// on a real command: mvn -Pcds package runs it and then fugl list birds in target/.
+final class CdsFixture {
+    private CdsFixture() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final List<Bird> birds = PageExtractor.birds(PageExtractorTest.fixture("alfabetisk.html"));
+        final Bird kjottmeis = birds.stream().filter(PageExtractorTest.KJOTTMEIS::equals).findFirst().orElseThrow();
+        final CatalogFile.Contents contents = new CatalogFile.Contents(birds,
+            Map.of(kjottmeis, PageExtractor.sounds(PageExtractorTest.fixture("kjottmeis.html"))),
+            Map.of(kjottmeis, PageExtractor.images(kjottmeis, PageExtractorTest.fixture("fuglgallery-1000.html"))));
+        CatalogFile.write(Path.of(args[0]).resolve(FuglelyderSkraper.CATALOG_SAVE), contents);
+    }
+}
@@ -0,0 +1,172 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// The CLI runs in a child process with the temporary directory as its working directory, since every
+// save lives under birds/ relative to it, and is pointed at a StubSite with --base-url. Each takes seconds to
+// minutes, so they only run with the load profile: mvn -Pload test.
+@Tag("load")
+public class CrawlLoadTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void updatesDownloadsAndVerifiesAgainstAFlakySite() throws IOException, InterruptedException {
+        try (StubSite site = new StubSite(30, new StubSite.Faults(Duration.ofMillis(5), 0.03, 0.005))) {
+            fugl(site, "update", "all-indexes", "--rate", "1000", "--burst", "100");
+            fugl(site, "download", "all-sounds", "--rate", "1000", "--burst", "100");
+            fugl(site, "download", "all-images", "--rate", "1000", "--burst", "100");
+            fugl(site, "verify");
+            fugl(site, "analyze", "sounds");
+
+            assertEquals(30 * site.soundsPerBird(), count(dir.resolve("birds/sounds")));
+            assertEquals(30 * site.imagesPerBird(), count(dir.resolve("birds/images")));
+            assertEquals(site.media(), count(dir.resolve("birds/sounds")) + count(dir.resolve("birds/images")));
+
+            // Only the damaged file is fetched again, not the one that was evicted
+            final List<Path> sounds = list(dir.resolve("birds/sounds"));
+            final Path damaged = sounds.get(0);
+            final byte[] bytes = Files.readAllBytes(damaged);
+            bytes[bytes.length / 2] ^= 1;
+            Files.write(damaged, bytes);
+            Files.delete(sounds.get(1));
+            final long fetched = site.media();
+            fugl(site, "verify", "--repair", "--rate", "1000", "--burst", "100");
+            assertEquals(fetched + 1, site.media());
+            assertFalse(Files.exists(sounds.get(1)));
+        }
+    }
+
+    // Two downloads of the same sounds and a re-crawl at once, sharing one birds/ directory
+    @Test
+    public void concurrentWorkersShareTheCache() throws IOException, InterruptedException {
+        try (StubSite site = new StubSite(30, new StubSite.Faults(Duration.ofMillis(20), 0, 0))) {
+            fugl(site, "update", "all-indexes", "--rate", "1000", "--burst", "100");
+            final List<Process> workers = List.of(
+                start(site, "download", "all-sounds", "--rate", "1000", "--burst", "100"),
+                start(site, "download", "all-sounds", "--rate", "1000", "--burst", "100"),
+                start(site, "update", "all-indexes", "--force", "--rate", "1000", "--burst", "100"));
+            for (Process worker : workers) {
+                assertEquals(0, worker.waitFor(), () -> "a worker failed:\n" + readLog(dir.resolve("fugl.log")));
+            }
+            fugl(site, "verify");
+
+            assertEquals(30 * site.soundsPerBird(), count(dir.resolve("birds/sounds")));
+            // Every sound was fetched by one of the two
+            assertEquals(30 * site.soundsPerBird(), site.media());
+        }
+    }
+
+    // Three shards crawled and downloaded in directories of their own, then merged into one cache
+    @Test
+    public void shardsMergeIntoOneCache() throws IOException, InterruptedException {
+        try (StubSite site = new StubSite(30, StubSite.Faults.NONE)) {
+            final List<String> shards = new ArrayList<>(List.of("merge"));
+            for (int i = 1; i <= 2; i++) {
+                final Path shard = Files.createDirectories(dir.resolve("shard-" + i));
+                fugl(shard, site, "update", "all-indexes", "--shard", i + "/2", "--rate", "1000", "--burst", "100");
+                fugl(shard, site, "download", "all-sounds", "--shard", i + "/2", "--rate", "1000", "--burst", "100");
+                fugl(shard, site, "download", "all-images", "--shard", i + "/2", "--rate", "1000", "--burst", "100");
+                shards.add(shard.toString());
+            }
+            final long fetched = site.media();
+            final Path merged = Files.createDirectories(dir.resolve("merged"));
+            fugl(merged, site, shards.toArray(String[]::new));
+            fugl(merged, site, shards.toArray(String[]::new));
+            fugl(merged, site, "verify");
+            fugl(merged, site, "download", "all-sounds", "--rate", "1000", "--burst", "100");
+            fugl(merged, site, "download", "all-images", "--rate", "1000", "--burst", "100");
+
+            assertEquals(30 * site.soundsPerBird(), count(merged.resolve("birds/sounds")));
+            assertEquals(30 * site.imagesPerBird(), count(merged.resolve("birds/images")));
+            // The merged catalog knew every file, nothing was left to fetch
+            assertEquals(fetched, site.media());
+            assertEquals(30 * (site.soundsPerBird() + site.imagesPerBird()), fetched);
+        }
+    }
+
+    // mvn -Pload test, sized with -Dfugl.load.birds; the metrics of every step are left in target/load
+    @Test
+    public void crawlAndDownloadThroughput() throws IOException, InterruptedException {
+        final int birds = Integer.getInteger("fugl.load.birds", 2000);
+        final Path metrics = Files.createDirectories(Path.of("target", "load")).toAbsolutePath();
+        try (StubSite site = new StubSite(birds, new StubSite.Faults(Duration.ofMillis(20), 0.01, 0.001))) {
+            long start = System.nanoTime();
+            fugl(site, "--metrics-out", metrics.resolve("update.json").toString(), "update", "all-indexes",
+                "--rate", "500", "--burst", "50", "--parallelism", "16");
+            report("update all-indexes", site.pages(), "pages", 0, start);
+
+            start = System.nanoTime();
+            final long media = site.media();
+            final long bytes = site.mediaBytes();
+            fugl(site, "--metrics-out", metrics.resolve("download.json").toString(), "download", "all-sounds",
+                "--rate", "500", "--burst", "50", "--parallelism", "16", "--per-host", "16");
+            report("download all-sounds", site.media() - media, "files", site.mediaBytes() - bytes, start);
+            System.out.println(site.errors() + " errors and " + site.throttled() + " 429s injected");
+
+            assertEquals(site.slugs() * site.soundsPerBird(), count(dir.resolve("birds/sounds")));
+        }
+    }
+
+    private void fugl(final StubSite site, final String... args) throws IOException, InterruptedException {
+        fugl(dir, site, args);
+    }
+
+    private void fugl(final Path workingDirectory, final StubSite site, final String... args)
+    throws IOException, InterruptedException {
+        final int exit = start(workingDirectory, site, args).waitFor();
+        assertEquals(0, exit, () -> String.join(" ", args) + " failed:\n" + readLog(dir.resolve("fugl.log")));
+    }
+
+    private Process start(final StubSite site, final String... args) throws IOException {
+        return start(dir, site, args);
+    }
+
+    private Process start(final Path workingDirectory, final StubSite site, final String... args) throws IOException {
+        final List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+            "-cp", System.getProperty("surefire.test.class.path", System.getProperty("java.class.path")),
+            FuglelyderCLI.class.getName(), "--base-url", site.url()));
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command).directory(workingDirectory.toFile()).redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(dir.resolve("fugl.log").toFile())).start();
+    }
+
+    private static String readLog(final Path log) {
+        try {
+            return Files.readString(log);
+        } catch (IOException e) {
+            return e.toString();
+        }
+    }
+
+    private static List<Path> list(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static long count(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static void report(final String step, final long items, final String unit, final long bytes, final long start) {
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d %s in %.1f s, %.0f %s/s%s%n", step, items, unit, seconds, items / seconds, unit,
+            bytes == 0 ? "" : String.format(", %.1f MB/s", bytes / seconds / 1e6));
+    }
+}
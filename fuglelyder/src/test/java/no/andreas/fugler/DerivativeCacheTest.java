@@ -0,0 +1,88 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DerivativeCacheTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void keepsTheAspectRatioAndNeverEnlarges() {
+        final BufferedImage wide = DerivativeCache.resize(new BufferedImage(1200, 800, BufferedImage.TYPE_INT_RGB), 300);
+        assertEquals(300, wide.getWidth());
+        assertEquals(200, wide.getHeight());
+        final BufferedImage small = DerivativeCache.resize(new BufferedImage(100, 50, BufferedImage.TYPE_INT_ARGB), 300);
+        assertEquals(100, small.getWidth());
+        assertEquals(50, small.getHeight());
+    }
+
+    @Test
+    public void regeneratesOnlyChangedSources() throws IOException {
+        final Path image = dir.resolve("1_1.png");
+        ImageIO.write(new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+        final Path root = dir.resolve("derivatives");
+        final Metrics.Phase phase = Metrics.get().phase("test", Metrics.MEDIA, 0);
+
+        final DerivativeCache cache = DerivativeCache.load(root);
+        assertEquals(1, cache.generate(List.of(image, dir.resolve("gone.jpg")), List.of(64, 128), 2, false, phase).generated());
+        cache.save();
+        final Map<Integer, Path> first = DerivativeCache.load(root).derivatives(image);
+        assertEquals(List.of(64, 128), List.copyOf(first.keySet()));
+        assertEquals(64, ImageIO.read(first.get(64).toFile()).getWidth());
+
+        final DerivativeCache.Report again = DerivativeCache.load(root).generate(List.of(image), List.of(64, 128), 2, false, phase);
+        assertEquals(1, again.unchanged());
+
+        ImageIO.write(new BufferedImage(320, 480, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+        final DerivativeCache changed = DerivativeCache.load(root);
+        assertEquals(1, changed.generate(List.of(image), List.of(64, 128), 2, false, phase).generated());
+        assertFalse(Files.exists(first.get(64)));
+        assertTrue(Files.exists(changed.derivatives(image).get(128)));
+        phase.close();
+    }
+
+    @Test
+    public void dropsTheDerivativesOfRemovedSources() throws IOException {
+        final Path kept = dir.resolve("1_1.png");
+        final Path copy = dir.resolve("1_2.png");
+        final Path deleted = dir.resolve("2_1.png");
+        ImageIO.write(new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB), "png", kept.toFile());
+        Files.copy(kept, copy);
+        ImageIO.write(new BufferedImage(480, 640, BufferedImage.TYPE_INT_RGB), "png", deleted.toFile());
+        final Path root = dir.resolve("derivatives");
+        final Metrics.Phase phase = Metrics.get().phase("test", Metrics.MEDIA, 0);
+
+        final DerivativeCache cache = DerivativeCache.load(root);
+        assertEquals(3, cache.generate(List.of(kept, copy, deleted), List.of(64), 2, false, phase).generated());
+        final Path shared = cache.derivatives(kept).get(64);
+        final Path gone = cache.derivatives(deleted).get(64);
+
+        // One of two identical sources left the catalog, the other was deleted from the cache
+        Files.delete(deleted);
+        final DerivativeCache.Report report = cache.generate(List.of(kept, deleted), List.of(64), 2, false, phase);
+        assertEquals(1, report.unchanged());
+        assertEquals(1, report.missing());
+        assertTrue(Files.exists(shared));
+        assertFalse(Files.exists(gone));
+        cache.save();
+
+        // Nothing is left that still refers to the shared derivative
+        assertEquals(0, DerivativeCache.load(root).generate(List.of(), List.of(64), 2, false, phase).generated());
+        assertFalse(Files.exists(shared));
+        phase.close();
+    }
+}
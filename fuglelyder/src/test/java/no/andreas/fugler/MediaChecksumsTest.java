@@ -0,0 +1,56 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MediaChecksumsTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void flagsDamagedFilesAndHashesOnlyWhatChanged() throws IOException {
+        final Path sang = Files.write(dir.resolve("kjottmeis4101 Sang.mp3"), new byte[] {1, 2, 3, 4});
+        final Path tigging = Files.write(dir.resolve("kjottmeis4104 Tigging.mp3"), new byte[] {5, 6, 7});
+        final Path varsel = Files.write(dir.resolve("kjottmeis4106 Varsel.mp3"), new byte[] {8, 9});
+        final Path lokk = Files.write(dir.resolve("kjottmeis4107 Lokk.mp3"), new byte[0]);
+        final Path save = dir.resolve("checksums.bin");
+        final MediaChecksums checksums = MediaChecksums.load(save);
+        checksums.record(sang, 4, MediaChecksums.hash(ByteBuffer.wrap(new byte[] {1, 2, 3, 4})),
+            Files.getLastModifiedTime(sang).toMillis());
+        checksums.record(tigging, 3, MediaChecksums.hash(ByteBuffer.wrap(new byte[] {5, 6, 7})), 0);
+        checksums.save();
+        final List<Path> files = List.of(sang, tigging, varsel, lokk);
+        final Metrics.Phase phase = Metrics.get().phase("test", Metrics.MEDIA, 0);
+
+        final MediaChecksums loaded = MediaChecksums.load(save);
+        final MediaChecksums.Report first = loaded.verify(files, 2, false, phase);
+        loaded.save();
+        assertEquals(1, first.unchanged());
+        assertEquals(1, first.hashed());
+        assertEquals(1, first.unrecorded());
+        assertEquals(List.of(lokk), first.damaged().stream().map(MediaChecksums.Damage::file).toList());
+        assertEquals(MediaChecksums.Problem.EMPTY, first.damaged().get(0).problem());
+
+        Files.write(tigging, new byte[] {5, 6});
+        Files.write(varsel, new byte[] {9, 8});
+        Files.setLastModifiedTime(varsel, FileTime.fromMillis(1000));
+        final MediaChecksums reloaded = MediaChecksums.load(save);
+        final MediaChecksums.Report second = reloaded.verify(List.of(sang, tigging, varsel), 2, false, phase);
+        assertEquals(1, second.unchanged());
+        assertEquals(List.of(MediaChecksums.Problem.TRUNCATED, MediaChecksums.Problem.CORRUPT),
+            second.damaged().stream().map(MediaChecksums.Damage::problem).toList());
+
+        assertEquals(1, reloaded.verify(List.of(sang), 1, true, phase).hashed());
+        assertEquals(1, reloaded.verify(List.of(dir.resolve("gone.mp3")), 1, false, phase).failures().size());
+        phase.close();
+    }
+}
@@ -0,0 +1,117 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MediaStoreTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void packsReadsAndUnpacksMedia() throws IOException {
+        final Path sounds = Files.createDirectories(dir.resolve("sounds"));
+        final Path sang = Files.write(sounds.resolve("kjottmeis4101 Sang.mp3"), new byte[] {1, 2, 3, 4});
+        final Path tigging = Files.write(sounds.resolve("kjottmeis4104 Tigging.mp3"), new byte[] {5, 6});
+        Files.write(sounds.resolve("kjottmeis4105 Sang.mp3.part"), new byte[] {7});
+        Files.setLastModifiedTime(sang, FileTime.fromMillis(1700000000000L));
+        final Path packs = dir.resolve("packs");
+
+        final MediaStore.PackReport report = MediaStore.load(packs, List.of(sounds)).pack(List.of(sounds));
+        assertEquals(2, report.packed());
+        assertEquals(6, report.bytes());
+        assertFalse(Files.exists(sang));
+        assertTrue(Files.exists(sounds.resolve("kjottmeis4105 Sang.mp3.part")));
+
+        final MediaStore store = MediaStore.load(packs, List.of(sounds));
+        assertTrue(store.exists(tigging));
+        assertEquals(1700000000000L, store.locate(sang).modified());
+        final ByteBuffer mapped = store.map(tigging);
+        final byte[] bytes = new byte[mapped.remaining()];
+        mapped.get(bytes);
+        assertArrayEquals(new byte[] {5, 6}, bytes);
+
+        assertTrue(store.delete(tigging));
+        assertNull(MediaStore.load(packs, List.of(sounds)).locate(tigging));
+        assertEquals(2, MediaStore.load(packs, List.of(sounds)).unreferenced());
+
+        assertEquals(1, MediaStore.load(packs, List.of(sounds)).unpack());
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, Files.readAllBytes(sang));
+        assertEquals(1700000000000L, Files.getLastModifiedTime(sang).toMillis());
+        assertFalse(Files.exists(packs.resolve("pack.idx")));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedMedia() throws IOException {
+        final Path sounds = Files.createDirectories(dir.resolve("sounds"));
+        final Path sang = Files.write(sounds.resolve("kjottmeis4101 Sang.mp3"), new byte[] {1, 2, 3, 4});
+        final Path tigging = Files.write(sounds.resolve("kjottmeis4104 Tigging.mp3"), new byte[] {5, 6});
+        Files.setLastModifiedTime(sang, FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(tigging, FileTime.fromMillis(2000));
+        final Path packs = dir.resolve("packs");
+        MediaStore.load(packs, List.of(sounds)).pack(List.of(sounds));
+        final Path varsel = Files.write(sounds.resolve("kjottmeis4106 Varsel.mp3"), new byte[] {7, 8, 9});
+        Files.setLastModifiedTime(varsel, FileTime.fromMillis(3000));
+
+        final MediaStore store = MediaStore.load(packs, List.of(sounds));
+        assertEquals(9, store.size());
+        MediaChecksums.get().record(varsel, 3, "varsel", 3000);
+        store.touch(sang);
+        final MediaStore.GcReport report = store.gc(5);
+        assertEquals(2, report.evicted());
+        assertEquals(5, report.freed());
+        assertEquals(2, report.reclaimed());
+        assertFalse(Files.exists(varsel));
+        assertNull(MediaChecksums.get().get(varsel));
+        assertNull(store.locate(tigging));
+        final ByteBuffer mapped = store.map(sang);
+        final byte[] bytes = new byte[mapped.remaining()];
+        mapped.get(bytes);
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, bytes);
+        assertEquals(0, store.unreferenced());
+
+        final MediaStore reloaded = MediaStore.load(packs, List.of(sounds));
+        assertEquals(4, reloaded.size());
+        reloaded.limit(4);
+        final Path lokk = Files.write(sounds.resolve("kjottmeis4107 Lokk.mp3"), new byte[] {10, 11});
+        reloaded.added(lokk, 2);
+        assertNull(reloaded.locate(sang));
+        assertTrue(reloaded.exists(lokk));
+        assertEquals(2, MediaStore.load(packs, List.of(sounds)).size());
+    }
+
+    @Test
+    public void mapsAgainWhenAnotherStoreReusedThePackNumber() throws IOException {
+        final Path sounds = Files.createDirectories(dir.resolve("sounds"));
+        Files.write(sounds.resolve("kjottmeis4101 Sang.mp3"), new byte[] {1, 2, 3, 4});
+        final Path tigging = Files.write(sounds.resolve("kjottmeis4104 Tigging.mp3"), new byte[] {5, 6});
+        final Path packs = dir.resolve("packs");
+        MediaStore.load(packs, List.of(sounds)).pack(List.of(sounds));
+        final MediaStore store = MediaStore.load(packs, List.of(sounds));
+        assertEquals(2, store.map(tigging).remaining());
+
+        // Another process unpacks, and packs other media into a new pack 1
+        final MediaStore other = MediaStore.load(packs, List.of(sounds));
+        other.unpack();
+        other.deleteAll(sounds);
+        final Path lokk = Files.write(sounds.resolve("kjottmeis4100 Lokk.mp3"), new byte[] {9, 9});
+        other.pack(List.of(sounds));
+
+        final ByteBuffer mapped = store.map(lokk);
+        final byte[] bytes = new byte[mapped.remaining()];
+        mapped.get(bytes);
+        assertArrayEquals(new byte[] {9, 9}, bytes);
+    }
+}
@@ -0,0 +1,85 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MediaSyncTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void diffsTheCatalogAgainstTheLastSync() throws IOException {
+        final Bird kjottmeis = new Bird(1000, "kjottmeis", "Kjøttmeis");
+        final Bird renamed = new Bird(1000, "kjottmeis-ny", "Kjøttmeis");
+        final BirdSound sang = new BirdSound(4101, "Sang");
+        final BirdSound tigging = new BirdSound(4104, "Tigging");
+        final BirdSound varsel = new BirdSound(4106, "Varsel");
+        final Map<String, MediaSync.Item> previous = MediaSync.sounds(Map.of(kjottmeis, List.of(sang, tigging)));
+        final Path save = dir.resolve("sync.bin");
+        MediaSync.save(save, previous, key -> true);
+        assertEquals(previous, MediaSync.load(save));
+        // A sync of the images leaves the sounds as they were
+        MediaSync.save(save, MediaSync.images(Map.of(kjottmeis, List.of(new BirdImage("1000_1.jpg", "Andreas")))),
+            key -> key.startsWith("image "));
+        assertEquals(3, MediaSync.load(save).size());
+        MediaSync.save(save, previous, key -> true);
+
+        final MediaSync.Diff same = MediaSync.diff(MediaSync.load(save), previous);
+        assertEquals(2, same.unchanged());
+        assertEquals(0, same.added().size() + same.changed().size() + same.removed().size());
+
+        final Map<String, MediaSync.Item> current = MediaSync.sounds(Map.of(renamed, List.of(sang, varsel)));
+        final MediaSync.Diff diff = MediaSync.diff(previous, current);
+        assertEquals(List.of("sound 1000/4106"), diff.added().stream().map(MediaSync.Change::key).toList());
+        assertEquals(List.of("sound 1000/4101"), diff.changed().stream().map(MediaSync.Change::key).toList());
+        assertEquals(List.of("sound 1000/4104"), diff.removed().stream().map(MediaSync.Change::key).toList());
+        assertEquals(FuglelyderSkraper.soundSave(renamed, sang), diff.changed().get(0).after().save());
+        assertEquals(0, diff.unchanged());
+
+        assertEquals(Map.of(), MediaSync.load(dir.resolve("missing.bin")));
+        Files.writeString(save, "not a sync state");
+        assertEquals(Map.of(), MediaSync.load(save));
+    }
+
+    @Test
+    public void keysImagesBySlug() {
+        final Bird bird = new Bird(1000, "kjottmeis", "Kjøttmeis");
+        final Map<String, MediaSync.Item> items = MediaSync.images(Map.of(bird, List.of(new BirdImage("1000_1.jpg", "Andreas"))));
+        assertEquals("birdmedia/1000/1000_1.jpg", items.get("image 1000/1000_1.jpg").path());
+        assertEquals(URI.create(FuglelyderSkraper.website() + "birdmedia/1000/1000_1.jpg"),
+            items.get("image 1000/1000_1.jpg").uri());
+    }
+
+    @Test
+    public void takesTheSitePathFromTheUrlsOfVersionOne() throws IOException {
+        final Bird kjottmeis = new Bird(1000, "kjottmeis", "Kjøttmeis");
+        final BirdSound sang = new BirdSound(4101, "Sang");
+        final Path save = dir.resolve("sync.bin");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(save))) {
+            out.writeInt(MediaSync.MAGIC);
+            out.writeShort(1);
+            out.writeInt(2);
+            out.writeUTF("sound 1000/4101");
+            out.writeUTF(FuglelyderSkraper.soundUri(kjottmeis, sang).toString());
+            out.writeUTF(FuglelyderSkraper.soundSave(kjottmeis, sang).toString());
+            // Synced from a local copy of the site
+            out.writeUTF("sound 1000/4104");
+            out.writeUTF("http://127.0.0.1:8080/birdmedia/1000/4104.mp3");
+            out.writeUTF("birds/sounds/kjottmeis4104 Tigging.mp3");
+        }
+        final Map<String, MediaSync.Item> loaded = MediaSync.load(save);
+        final MediaSync.Diff diff = MediaSync.diff(loaded, MediaSync.sounds(Map.of(kjottmeis, List.of(sang))));
+        assertEquals(1, diff.unchanged());
+        assertEquals("birdmedia/1000/4104.mp3", loaded.get("sound 1000/4104").path());
+    }
+}
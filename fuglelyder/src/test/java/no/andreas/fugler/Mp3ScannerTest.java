@@ -0,0 +1,46 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+public class Mp3ScannerTest {
+    // MPEG-1 layer III, 128 kbit/s, 44.1 kHz, joint stereo: 417 byte frames of 1152 samples
+    private static final int HEADER = 0xFFFB9064;
+    private static final int FRAME = 417;
+
+    @Test
+    public void countsFramesBehindAnId3Tag() throws IOException {
+        final ByteBuffer data = ByteBuffer.allocate(10 + 20 + 100 * FRAME + 128);
+        data.put(new byte[] {'I', 'D', '3', 4, 0, 0, 0, 0, 0, 20}).position(30);
+        for (int i = 0; i < 100; i++) {
+            data.putInt(30 + i * FRAME, HEADER);
+        }
+        data.put(30 + 100 * FRAME, new byte[] {'T', 'A', 'G'});
+
+        final Mp3Scanner.Result result = Mp3Scanner.scan(data.clear());
+        assertEquals(100 * 1152 * 1000 / 44100, result.durationMillis());
+        assertEquals(128, result.bitrate());
+        assertEquals(44100, result.sampleRate());
+    }
+
+    @Test
+    public void trustsTheFrameCountOfAXingTag() throws IOException {
+        final ByteBuffer data = ByteBuffer.allocate(3 * FRAME);
+        for (int i = 0; i < 3; i++) {
+            data.putInt(i * FRAME, HEADER);
+        }
+        data.putInt(4 + 32, 0x58696E67).putInt(4 + 32 + 4, 1).putInt(4 + 32 + 8, 1000);
+
+        assertEquals(1000 * 1152 * 1000 / 44100, Mp3Scanner.scan(data).durationMillis());
+    }
+
+    @Test
+    public void rejectsDataWithoutFrames() {
+        assertThrows(IOException.class, () -> Mp3Scanner.scan(ByteBuffer.wrap("<html>not found</html>".getBytes())));
+    }
+}
@@ -0,0 +1,64 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.jupiter.api.Test;
+
+public class PageExtractorTest {
+    static final Bird KJOTTMEIS = new Bird(1000, "kjottmeis", "Kjøttmeis");
+
+    static PageExtractor.Page fixture(final String name) throws IOException {
+        try (InputStream in = PageExtractorTest.class.getResourceAsStream("/pages/" + name)) {
+            return new PageExtractor.Page("https://www.fuglelyder.net/", Objects.requireNonNull(in, name).readAllBytes(), null);
+        }
+    }
+
+    static Document dom(final PageExtractor.Page page) {
+        return Jsoup.parse(new String(page.body(), StandardCharsets.UTF_8), page.url());
+    }
+
+    @Test
+    public void streamedBirdsMatchTheDocumentSelectors() throws IOException {
+        final PageExtractor.Page page = fixture("alfabetisk.html");
+        final List<Bird> birds = PageExtractor.birds(page);
+        final List<Element> expected = dom(page).select(".bird-outer");
+        assertEquals(expected.size(), birds.size());
+        assertEquals(new Bird(1000, "kjottmeis", "Kjøttmeis"), birds.get(0));
+        for (int i = 0; i < birds.size(); i++) {
+            assertEquals(expected.get(i).selectFirst("img").attr("alt"), birds.get(i).getName());
+        }
+    }
+
+    @Test
+    public void streamedSoundsSkipHeartAndShopTabs() throws IOException {
+        final List<BirdSound> sounds = PageExtractor.sounds(fixture("kjottmeis.html"));
+        assertEquals(List.of(new BirdSound(4101, "Sang"), new BirdSound(4102, "Lokkelyd-varsel"),
+            new BirdSound(4103, "Sang-lokkelyd"), new BirdSound(4104, "Tigging")), sounds);
+    }
+
+    @Test
+    public void streamedImagesMatchTheDocumentSelectors() throws IOException {
+        final PageExtractor.Page page = fixture("fuglgallery-1000.html");
+        final List<BirdImage> images = PageExtractor.images(KJOTTMEIS, page);
+        final List<Element> slides = dom(page).getElementsByClass("swiper-slide");
+        assertEquals(slides.size(), images.size());
+        assertEquals(new BirdImage("1000_4.jpg", "Åse Ødegård"), images.get(3));
+    }
+
+    @Test
+    public void missingSoundBlockIsAnError() {
+        assertThrows(IOException.class,
+            () -> PageExtractor.sounds(new StringReader("<html><body><p>ingen lyder</p></body></html>"), "https://example/"));
+    }
+}
@@ -0,0 +1,94 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class RequestSchedulerTest {
+    @Test
+    public void readsRetryAfterAsSecondsOrAnHttpDate() {
+        assertEquals(TimeUnit.SECONDS.toNanos(120), RequestScheduler.retryAfter("120"));
+        assertEquals(TimeUnit.SECONDS.toNanos(3), RequestScheduler.retryAfter(" 3 "));
+        final String inAMinute = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60));
+        final long untilThen = RequestScheduler.retryAfter(inAMinute);
+        assertTrue(untilThen > TimeUnit.SECONDS.toNanos(55) && untilThen <= TimeUnit.SECONDS.toNanos(60), () -> untilThen + " ns");
+        assertEquals(0, RequestScheduler.retryAfter("Sun, 06 Nov 1994 08:49:37 GMT"));
+        // Capped, and nothing for headers that are missing or not understood
+        assertEquals(TimeUnit.MINUTES.toNanos(5), RequestScheduler.retryAfter("86400"));
+        assertEquals(0, RequestScheduler.retryAfter(null));
+        assertEquals(0, RequestScheduler.retryAfter(""));
+        assertEquals(0, RequestScheduler.retryAfter("soon"));
+        assertEquals(0, RequestScheduler.retryAfter("-5"));
+    }
+
+    @Test
+    public void backoffStaysUnderTheCeilingOfTheRetry() {
+        for (int retry = 0; retry < 40; retry++) {
+            final long ceiling = Math.min(TimeUnit.SECONDS.toNanos(30), TimeUnit.MILLISECONDS.toNanos(500) << Math.min(retry, 16));
+            for (int i = 0; i < 100; i++) {
+                final long backoff = RequestScheduler.backoff(retry);
+                assertTrue(backoff >= 0 && backoff <= ceiling, retry + ": " + backoff);
+            }
+        }
+    }
+
+    @Test
+    public void halvesTheLimitOncePerSecondOfThrottlingAndGrowsItBack() throws IOException, InterruptedException {
+        final RequestScheduler scheduler = new RequestScheduler(new RequestScheduler.Limits(1000, 100, 8, 0));
+        assertEquals(8, scheduler.concurrencyLimit());
+        send(scheduler, 429);
+        assertEquals(4, scheduler.concurrencyLimit());
+        // Part of the same burst of throttling
+        send(scheduler, 503);
+        send(scheduler, 429);
+        assertEquals(4, scheduler.concurrencyLimit());
+        // Server errors and failed connections leave the limit alone
+        send(scheduler, 500);
+        assertEquals(4, scheduler.concurrencyLimit());
+
+        // 1/limit per success: 4.25, 4.49, 4.71, 4.92, 5.12
+        for (int i = 0; i < 4; i++) {
+            send(scheduler, 200);
+        }
+        assertEquals(4, scheduler.concurrencyLimit());
+        send(scheduler, 200);
+        assertEquals(5, scheduler.concurrencyLimit());
+        for (int i = 0; i < 100; i++) {
+            send(scheduler, 304);
+        }
+        assertEquals(8, scheduler.concurrencyLimit());
+
+        // Still within a second of the last halving
+        send(scheduler, 503);
+        assertEquals(8, scheduler.concurrencyLimit());
+        Thread.sleep(1100);
+        send(scheduler, 503);
+        assertEquals(4, scheduler.concurrencyLimit());
+    }
+
+    @Test
+    public void callersReserveTheirPlaceInTheBucket() throws IOException {
+        final RequestScheduler scheduler = new RequestScheduler(new RequestScheduler.Limits(10, 2, 8, 0));
+        final long start = System.nanoTime();
+        // The burst goes right away
+        send(scheduler, 200);
+        send(scheduler, 200);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+        // then one every 100 ms
+        send(scheduler, 200);
+        send(scheduler, 200);
+        send(scheduler, 200);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(280), () -> (System.nanoTime() - start) + " ns");
+    }
+
+    private static void send(final RequestScheduler scheduler, final int status) throws IOException {
+        assertEquals(status, scheduler.send(Metrics.PAGE, () -> status, code -> code, code -> null));
+    }
+}
@@ -0,0 +1,61 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SearchIndexTest {
+    private static final List<Bird> BIRDS = List.of(
+        new Bird(1, "kjottmeis", "Kjøttmeis"),
+        new Bird(2, "blameis", "Blåmeis"),
+        new Bird(3, "skjaere", "Skjære"),
+        new Bird(4, "svarttrost", "Svarttrost"));
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void foldsCaseAndNorwegianLetters() {
+        assertEquals("kjottmeis", SearchIndex.normalize("KJØTTMEIS"));
+        assertEquals("skjaere", SearchIndex.normalize("Skjære"));
+        assertEquals("blameis", SearchIndex.normalize("Blåmeis"));
+        assertEquals("svart trost", SearchIndex.normalize(" svart-trost! "));
+    }
+
+    @Test
+    public void ranksExactAndPrefixMatchesFirstAndToleratesTypos() throws IOException {
+        final SearchIndex index = SearchIndex.update(dir.resolve("search.bin"), BIRDS);
+
+        assertEquals(2, index.search("blåmeis", 5).get(0).bird().getId());
+        assertEquals(3, index.search("skjae", 5).get(0).bird().getId());
+        assertEquals(1, index.search("kjotmeis", 5).get(0).bird().getId());
+        assertEquals(4, index.search("svart trost", 5).get(0).bird().getId());
+        assertTrue(index.search("ugle", 5).isEmpty());
+    }
+
+    @Test
+    public void reindexesOnlyWhenTheBirdsChange() throws IOException {
+        final Path save = dir.resolve("search.bin");
+        SearchIndex.update(save, BIRDS);
+        final FileTime saved = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(save, saved);
+
+        assertEquals(4, SearchIndex.update(save, BIRDS).size());
+        assertEquals(saved, Files.getLastModifiedTime(save));
+
+        final SearchIndex grown = SearchIndex.update(save,
+            List.of(BIRDS.get(0), BIRDS.get(1), new Bird(3, "skjaere", "Skjære"), new Bird(5, "hornugle", "Hornugle")));
+        assertEquals(4, grown.size());
+        assertEquals(5, grown.search("ugle", 5).get(0).bird().getId());
+        assertTrue(grown.search("svarttrost", 5).isEmpty());
+        assertEquals(5, SearchIndex.load(save).search("hornugle", 5).get(0).bird().getId());
+    }
+}
@@ -0,0 +1,68 @@
+package no.andreas.fugler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class ShardMergeTest {
+    private static final Bird KJOTTMEIS = new Bird(1000, "kjottmeis", "Kjøttmeis");
+    private static final Bird BLAMEIS = new Bird(1001, "blameis", "Blåmeis");
+    private static final Bird SVARTTROST = new Bird(1021, "svarttrost", "Svarttrost");
+
+    @Test
+    public void splitsTheBirdsByIdIntoDisjointShards() {
+        final List<Bird> birds = new ArrayList<>();
+        for (int id = 1000; id < 1100; id++) {
+            birds.add(new Bird(id, "fugl-" + id, "Fugl " + id));
+        }
+        final Set<Bird> seen = new HashSet<>();
+        for (int i = 1; i <= 3; i++) {
+            final List<Bird> shard = Shard.parse(i + "/3").of(birds);
+            assertTrue(shard.size() >= 33);
+            shard.forEach(bird -> assertTrue(seen.add(bird)));
+        }
+        assertEquals(birds.size(), seen.size());
+        assertEquals(birds, Shard.ALL.of(birds));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("0/3"));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("4/3"));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("2"));
+    }
+
+    @Test
+    public void takesOverWhatOnlyTheShardHasAndReportsConflicts() {
+        final BirdSound sang = new BirdSound(4101, "Sang");
+        final BirdSound tigging = new BirdSound(4104, "Tigging");
+        final Map<Bird, List<BirdSound>> ourSounds = new HashMap<>();
+        ourSounds.put(KJOTTMEIS, List.of(sang));
+        final CatalogFile.Contents ours = new CatalogFile.Contents(List.of(KJOTTMEIS, BLAMEIS), ourSounds, Map.of());
+
+        final Bird renamed = new Bird(1001, "blaameis", "Blåmeis");
+        final Map<Bird, List<BirdSound>> theirSounds = new HashMap<>();
+        theirSounds.put(KJOTTMEIS, List.of(sang, tigging));
+        theirSounds.put(renamed, List.of(sang));
+        theirSounds.put(SVARTTROST, List.of(tigging));
+        final CatalogFile.Contents theirs = new CatalogFile.Contents(List.of(KJOTTMEIS, renamed, SVARTTROST), theirSounds,
+            Map.of(SVARTTROST, List.of(new BirdImage("1021_1.jpg", "Andreas"))));
+
+        final ShardMerge.Merged merged = ShardMerge.catalog(Path.of("shard-2"), ours, theirs);
+        assertEquals(List.of(KJOTTMEIS, BLAMEIS, SVARTTROST), merged.contents().birds());
+        assertEquals(List.of(sang), merged.contents().sounds().get(KJOTTMEIS));
+        assertEquals(List.of(tigging), merged.contents().sounds().get(SVARTTROST));
+        assertEquals(1, merged.contents().images().size());
+        assertEquals(1, merged.report().birds());
+        assertEquals(1, merged.report().sounds());
+        assertEquals(1, merged.report().images());
+        assertEquals(List.of("bird 1001", "sounds of kjottmeis"),
+            merged.report().conflicts().stream().map(ShardMerge.Conflict::what).toList());
+    }
+}
@@ -0,0 +1,272 @@
+package no.andreas.fugler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+// A stand-in for fuglelyder.net on the JDK HttpServer. The saved alfabetisk, bird and gallery pages are
+// grown to any number of birds, and media are synthetic: MP3s of silent frames and one small JPEG.
+// Latency, server errors and 429 throttling can be injected on every request, pages and media alike.
+final class StubSite implements AutoCloseable {
+    record Faults(Duration latency, double errors, double throttles) {
+        static final Faults NONE = new Faults(Duration.ZERO, 0, 0);
+    }
+
+    private static final String BIRD_OUTER = "<div class=\"bird-outer\">";
+    private static final String SAVED_MEDIA = "birdmedia/1000/";
+    // MPEG-1 layer III, 128 kbit/s, 44.1 kHz, stereo: 417 byte frames of 1152 samples
+    private static final int MP3_HEADER = 0xFFFB9000;
+    private static final int MP3_FRAME = 417;
+
+    static {
+        // Without it small responses wait on Nagle and delayed ACKs, tens of milliseconds each
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Faults faults;
+    private final Map<String, Bird> bySlug = new LinkedHashMap<>();
+    private final Map<Integer, Bird> byId = new LinkedHashMap<>();
+    private final byte[] birdList;
+    private final String birdPage;
+    private final String gallery;
+    private final byte[] mp3;
+    private final byte[] jpeg;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong media = new AtomicLong();
+    private final AtomicLong mediaBytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    StubSite(final int birds, final Faults faults) throws IOException {
+        this.faults = faults;
+        for (Bird bird : birds(birds)) {
+            bySlug.put(bird.getSlug(), bird);
+            byId.put(bird.getId(), bird);
+        }
+        this.birdList = birdList(byId.values()).getBytes(StandardCharsets.UTF_8);
+        this.birdPage = saved("kjottmeis.html");
+        this.gallery = saved("fuglgallery-1000.html");
+        this.mp3 = mp3(25);
+        this.jpeg = jpeg(320, 240);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // Enough threads that injected latency delays requests instead of queueing them
+        this.executor = Executors.newFixedThreadPool(64);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    int birds() {
+        return byId.size();
+    }
+
+    // Birds the list holds more than once, under other names, share a slug and so their saved sounds
+    int slugs() {
+        return (int) byId.values().stream().map(Bird::getSlug).distinct().count();
+    }
+
+    int soundsPerBird() throws IOException {
+        return PageExtractor.sounds(page(birdPage, byId.values().iterator().next())).size();
+    }
+
+    int imagesPerBird() throws IOException {
+        final Bird bird = byId.values().iterator().next();
+        return PageExtractor.images(bird, page(gallery, bird)).size();
+    }
+
+    long pages() {
+        return pages.get();
+    }
+
+    long media() {
+        return media.get();
+    }
+
+    long mediaBytes() {
+        return mediaBytes.get();
+    }
+
+    long errors() {
+        return errors.get();
+    }
+
+    long throttled() {
+        return throttled.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!faults.latency().isZero()) {
+                Thread.sleep(faults.latency().toMillis());
+            }
+            final double roll = ThreadLocalRandom.current().nextDouble();
+            if (roll < faults.throttles()) {
+                throttled.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(429, -1);
+                return;
+            }
+            if (roll < faults.throttles() + faults.errors()) {
+                errors.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            final String path = exchange.getRequestURI().getPath();
+            final String query = exchange.getRequestURI().getQuery();
+            if (path.equals("/alfabetisk/")) {
+                send(exchange, "text/html; charset=utf-8", birdList, pages);
+            } else if (path.equals("/fuglgallery.asp") && query != null && query.startsWith("ID=")) {
+                final Bird bird = byId.get(parseId(query.substring(3)));
+                sendPage(exchange, bird == null ? null : gallery, bird);
+            } else if (path.startsWith("/birdmedia/")) {
+                final String[] parts = path.split("/");
+                final Bird bird = parts.length == 4 ? byId.get(parseId(parts[2])) : null;
+                if (bird == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else if (parts[3].endsWith(".mp3")) {
+                    send(exchange, "audio/mpeg", mp3, media);
+                } else {
+                    send(exchange, "image/jpeg", jpeg, media);
+                }
+            } else {
+                final Bird bird = bySlug.get(path.replace("/", ""));
+                sendPage(exchange, bird == null ? null : birdPage, bird);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendPage(final HttpExchange exchange, final String html, final Bird bird) throws IOException {
+        if (html == null) {
+            exchange.sendResponseHeaders(404, -1);
+        } else {
+            send(exchange, "text/html; charset=utf-8", page(html, bird).body(), pages);
+        }
+    }
+
+    private void send(final HttpExchange exchange, final String type, final byte[] body, final AtomicLong counter)
+    throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        counter.incrementAndGet();
+        if (counter == media) {
+            mediaBytes.addAndGet(body.length);
+        }
+    }
+
+    private static Integer parseId(final String id) {
+        try {
+            return Integer.valueOf(id);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // A saved page moved over to the bird, so its media links point into the bird's own directory
+    private PageExtractor.Page page(final String html, final Bird bird) {
+        final String moved = html.replace(SAVED_MEDIA + "1000_", "birdmedia/" + bird.getId() + "/" + bird.getId() + "_")
+            .replace(SAVED_MEDIA, "birdmedia/" + bird.getId() + "/");
+        return new PageExtractor.Page(url(), moved.getBytes(StandardCharsets.UTF_8), "UTF-8");
+    }
+
+    private static String saved(final String name) {
+        try (InputStream in = StubSite.class.getResourceAsStream("/pages/" + name)) {
+            return new String(Objects.requireNonNull(in, name).readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The saved bird list repeated until there are count birds, with fresh ids and slugs on every pass
+    private static List<Bird> birds(final int count) throws IOException {
+        final List<Bird> saved = PageExtractor.birds(new PageExtractor.Page("https://www.fuglelyder.net/",
+            saved("alfabetisk.html").getBytes(StandardCharsets.UTF_8), "UTF-8"));
+        final List<Bird> birds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Bird bird = saved.get(i % saved.size());
+            final int pass = i / saved.size();
+            birds.add(pass == 0 ? bird
+                : new Bird(bird.getId() + pass * 100_000, bird.getSlug() + "-" + pass, bird.getName() + " " + pass));
+        }
+        return birds;
+    }
+
+    // The saved alfabetisk page with its bird list swapped for the given birds in the same markup
+    private static String birdList(final Iterable<Bird> birds) {
+        final String saved = saved("alfabetisk.html");
+        final int first = saved.indexOf(BIRD_OUTER);
+        final int end = saved.indexOf("\n</div>", saved.lastIndexOf(BIRD_OUTER)) + "\n</div>".length();
+        final StringBuilder html = new StringBuilder(saved.length()).append(saved, 0, first);
+        for (Bird bird : birds) {
+            html.append(BIRD_OUTER).append('\n')
+                .append("  <a href=\"/").append(bird.getSlug()).append("/\"><div class=\"bird-inner\">\n")
+                .append("    <img src=\"birdmedia/").append(bird.getId()).append('/').append(bird.getId())
+                .append("_thumb.jpg\" alt=\"").append(bird.getName()).append("\" loading=\"lazy\">\n")
+                .append("    <span class=\"bird-name\">").append(bird.getName()).append("</span>\n")
+                .append("  </div></a>\n")
+                .append("</div>\n");
+        }
+        return html.append(saved, end + 1, saved.length()).toString();
+    }
+
+    // Silent frames only, but with real headers so the sound analysis has something to read
+    private static byte[] mp3(final int frames) {
+        final byte[] mp3 = new byte[frames * MP3_FRAME];
+        for (int frame = 0; frame < frames; frame++) {
+            for (int i = 0; i < 4; i++) {
+                mp3[frame * MP3_FRAME + i] = (byte) (MP3_HEADER >>> (24 - 8 * i));
+            }
+        }
+        return mp3;
+    }
+
+    private static byte[] jpeg(final int width, final int height) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | 0x60);
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+}